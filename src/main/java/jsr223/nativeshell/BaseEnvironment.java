@@ -0,0 +1,126 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The environment the processes started by the engines inherit, computed once. The engines only compute the
+ * variables they add to it for each process.
+ * <p>
+ * By default it is the environment of the JVM. With the system property {@value #CLEAN_ENVIRONMENT_PROPERTY_NAME},
+ * it only has the variables named in {@value #INHERITED_VARIABLES_PROPERTY_NAME}, comma separated, which defaults
+ * to the few variables most programs expect.
+ */
+public final class BaseEnvironment {
+
+    public static final String CLEAN_ENVIRONMENT_PROPERTY_NAME = "jsr223.nativeshell.cleanEnvironment";
+
+    public static final String INHERITED_VARIABLES_PROPERTY_NAME = "jsr223.nativeshell.cleanEnvironment.inherit";
+
+    private static final String DEFAULT_INHERITED_VARIABLES = "PATH,HOME,USER,LOGNAME,SHELL,LANG,LC_ALL,LC_CTYPE," +
+                                                              "TMPDIR,TZ,TERM,SystemRoot,windir,ComSpec,PATHEXT," +
+                                                              "TEMP,TMP,USERPROFILE";
+
+    private static final boolean clean = Boolean.getBoolean(CLEAN_ENVIRONMENT_PROPERTY_NAME);
+
+    private static final Map<String, String> variables = snapshot();
+
+    private static final long size = size(variables);
+
+    private BaseEnvironment() {
+    }
+
+    public static boolean isClean() {
+        return clean;
+    }
+
+    /**
+     * The inherited variables, unmodifiable.
+     */
+    public static Map<String, String> get() {
+        return variables;
+    }
+
+    /**
+     * The approximate size of the inherited variables once passed to a process, in bytes.
+     */
+    public static long getSize() {
+        return size;
+    }
+
+    /**
+     * Sets the environment of the process builder to the base environment plus the given variables. When they add
+     * nothing to the environment of the JVM, the process inherits it without any copy.
+     */
+    public static void apply(ProcessBuilder processBuilder, Map<String, String> addedVariables) {
+        if (!clean && !changes(addedVariables)) {
+            return;
+        }
+        // ProcessBuilder copies the JVM environment the first time it is asked for, there is no other way to change it
+        Map<String, String> environment = processBuilder.environment();
+        if (clean) {
+            environment.clear();
+            environment.putAll(variables);
+        }
+        environment.putAll(addedVariables);
+    }
+
+    private static boolean changes(Map<String, String> addedVariables) {
+        for (Map.Entry<String, String> variable : addedVariables.entrySet()) {
+            if (!variable.getValue().equals(variables.get(variable.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long size(Map<String, String> variables) {
+        long size = 0;
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            size += SpillFiles.size(variable.getKey() + "=" + variable.getValue());
+        }
+        return size;
+    }
+
+    private static Map<String, String> snapshot() {
+        if (!clean) {
+            return System.getenv();
+        }
+        Map<String, String> inherited = new HashMap<>();
+        for (String name : System.getProperty(INHERITED_VARIABLES_PROPERTY_NAME, DEFAULT_INHERITED_VARIABLES)
+                                 .split(",")) {
+            String value = System.getenv(name.trim());
+            if (value != null) {
+                inherited.put(name.trim(), value);
+            }
+        }
+        return Collections.unmodifiableMap(inherited);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Large buffers shared by the output pumps. A pump only holds one while it copies output, so there are about as
+ * many buffers as pump threads whatever the number of processes.
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final ConcurrentLinkedQueue<byte[]> bytes = new ConcurrentLinkedQueue<>();
+
+    private static final ConcurrentLinkedQueue<char[]> chars = new ConcurrentLinkedQueue<>();
+
+    private static final AtomicInteger pooledBytes = new AtomicInteger();
+
+    private static final AtomicInteger pooledChars = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    static byte[] acquireBytes() {
+        byte[] buffer = bytes.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        pooledBytes.decrementAndGet();
+        return buffer;
+    }
+
+    static void release(byte[] buffer) {
+        if (pooledBytes.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            bytes.offer(buffer);
+        } else {
+            pooledBytes.decrementAndGet();
+        }
+    }
+
+    static char[] acquireChars() {
+        char[] buffer = chars.poll();
+        if (buffer == null) {
+            return new char[BUFFER_SIZE];
+        }
+        pooledChars.decrementAndGet();
+        return buffer;
+    }
+
+    static void release(char[] buffer) {
+        if (pooledChars.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            chars.offer(buffer);
+        } else {
+            pooledChars.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+
+/**
+ * A writer to an output stream that the engines can also give bytes to. Set as the writer of a script context, it
+ * gets the output of the processes as it is when its charset is the one of {@link StreamPumps#getCharset()},
+ * instead of decoded and encoded again.
+ */
+public class ByteWriter extends Writer {
+
+    private final OutputStream outputStream;
+
+    private final Charset charset;
+
+    private final OutputStreamWriter encoder;
+
+    public ByteWriter(OutputStream outputStream, Charset charset) {
+        this.outputStream = outputStream;
+        this.charset = charset;
+        this.encoder = new OutputStreamWriter(outputStream, charset);
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Writes bytes encoded with the charset of this writer.
+     */
+    public synchronized void write(byte[] bytes, int off, int len) throws IOException {
+        encoder.flush();
+        outputStream.write(bytes, off, len);
+    }
+
+    @Override
+    public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+        encoder.write(cbuf, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        encoder.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        encoder.close();
+    }
+}
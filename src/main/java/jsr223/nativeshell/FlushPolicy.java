@@ -0,0 +1,117 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+
+/**
+ * When the output of a script is flushed to the writers of its context, read from the bindings or else from the
+ * generic information {@value #FLUSH_NAME}:
+ * <ul>
+ * <li>{@code line}, the default: after each line and as soon as the script stops writing</li>
+ * <li>{@code interval}: at most every {@value #FLUSH_INTERVAL_NAME} milliseconds (200 by default), or once
+ * {@value #FLUSH_BYTES_NAME} bytes were written (64KiB by default)</li>
+ * <li>{@code throughput}: only when the script ended, or when the writer decides to</li>
+ * </ul>
+ */
+public final class FlushPolicy {
+
+    public static final String FLUSH_NAME = "NATIVE_SHELL_FLUSH";
+
+    public static final String FLUSH_INTERVAL_NAME = "NATIVE_SHELL_FLUSH_INTERVAL";
+
+    public static final String FLUSH_BYTES_NAME = "NATIVE_SHELL_FLUSH_BYTES";
+
+    public enum Mode {
+        LINE,
+        INTERVAL,
+        THROUGHPUT
+    }
+
+    private static final long DEFAULT_INTERVAL_MILLIS = 200;
+
+    private static final long DEFAULT_BYTES = 64 * 1024;
+
+    private static final FlushPolicy LINE = new FlushPolicy(Mode.LINE, 0, 0);
+
+    private final Mode mode;
+
+    private final long intervalNanos;
+
+    private final long maxUnflushedBytes;
+
+    private FlushPolicy(Mode mode, long intervalNanos, long maxUnflushedBytes) {
+        this.mode = mode;
+        this.intervalNanos = intervalNanos;
+        this.maxUnflushedBytes = maxUnflushedBytes;
+    }
+
+    public static FlushPolicy create(ScriptContext scriptContext) throws ScriptException {
+        String mode = ScriptOptions.get(scriptContext, FLUSH_NAME);
+        if (mode == null) {
+            return LINE;
+        }
+        Mode parsedMode;
+        try {
+            parsedMode = Mode.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ScriptException("Invalid " + FLUSH_NAME + ", line, interval or throughput is expected: " +
+                                      mode);
+        }
+        if (parsedMode == Mode.INTERVAL) {
+            long intervalMillis = ScriptOptions.getLong(scriptContext, FLUSH_INTERVAL_NAME, DEFAULT_INTERVAL_MILLIS);
+            return new FlushPolicy(Mode.INTERVAL,
+                                   TimeUnit.MILLISECONDS.toNanos(intervalMillis),
+                                   ScriptOptions.getLong(scriptContext, FLUSH_BYTES_NAME, DEFAULT_BYTES));
+        }
+        return parsedMode == Mode.THROUGHPUT ? new FlushPolicy(Mode.THROUGHPUT, 0, 0) : LINE;
+    }
+
+    /**
+     * Flushes after each line and as soon as the script stops writing. The engines used to flush after every chunk
+     * they read, a partial line such as a prompt is still flushed once the script pauses.
+     */
+    public static FlushPolicy line() {
+        return LINE;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    public long getMaxUnflushedBytes() {
+        return maxUnflushedBytes;
+    }
+}
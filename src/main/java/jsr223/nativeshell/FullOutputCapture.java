@@ -0,0 +1,151 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps the whole output of a process: in memory, in chunks, up to {@value #MEMORY_THRESHOLD_PROPERTY_NAME} bytes
+ * (16MiB by default) and in a temporary file beyond.
+ */
+public final class FullOutputCapture implements OutputCapture {
+
+    public static final String MEMORY_THRESHOLD_PROPERTY_NAME = "jsr223.nativeshell.capture.memoryThreshold";
+
+    private static final long DEFAULT_MEMORY_THRESHOLD = 16 * 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    // the result must fit in an array
+    private final long memoryThreshold = Math.min(Long.getLong(MEMORY_THRESHOLD_PROPERTY_NAME,
+                                                               DEFAULT_MEMORY_THRESHOLD),
+                                                  Integer.MAX_VALUE - 8);
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    private int lastChunkLength;
+
+    private long size;
+
+    private File file;
+
+    private OutputStream fileOutput;
+
+    @Override
+    public synchronized void write(byte[] bytes, int off, int len) throws IOException {
+        if (file == null && size + len > memoryThreshold) {
+            spill();
+        }
+        if (file != null) {
+            fileOutput.write(bytes, off, len);
+        } else {
+            append(bytes, off, len);
+        }
+        size += len;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * The output as a byte array if it was kept in memory, as the file it was written to otherwise, which the
+     * caller then owns and must delete.
+     */
+    public synchronized Object getResult() throws IOException {
+        if (file != null) {
+            fileOutput.close();
+            return file;
+        }
+        byte[] result = new byte[(int) size];
+        int position = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            int length = i == chunks.size() - 1 ? lastChunkLength : chunk.length;
+            System.arraycopy(chunk, 0, result, position, length);
+            position += length;
+        }
+        chunks.clear();
+        return result;
+    }
+
+    /**
+     * Forgets the output, deleting its file if any.
+     */
+    public synchronized void discard() {
+        chunks.clear();
+        if (file != null) {
+            try {
+                fileOutput.close();
+            } catch (IOException ignored) {
+            }
+            file.delete();
+        }
+    }
+
+    private void append(byte[] bytes, int off, int len) {
+        while (len > 0) {
+            byte[] chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || lastChunkLength == chunk.length) {
+                // chunks grow with the output, a short output does not take a large chunk
+                int chunkSize = (int) Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, Math.max(size, len)));
+                chunk = new byte[chunkSize];
+                chunks.add(chunk);
+                lastChunkLength = 0;
+            }
+            int copied = Math.min(len, chunk.length - lastChunkLength);
+            System.arraycopy(bytes, off, chunk, lastChunkLength, copied);
+            lastChunkLength += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    private void spill() throws IOException {
+        // not in the script cache directory, which may be in memory and is deleted with the JVM, the caller owns
+        // the file and no orphan sweep deletes it
+        file = ScriptFileCache.createOwnerOnlyFile(new File(System.getProperty("java.io.tmpdir")),
+                                                   "nativeshell-output-");
+        fileOutput = new FileOutputStream(file);
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            fileOutput.write(chunk, 0, i == chunks.size() - 1 ? lastChunkLength : chunk.length);
+        }
+        chunks.clear();
+    }
+}
@@ -50,23 +50,4 @@ public final class IOUtils {
         out.print(string);
         out.close();
     }
-
-    public static void pipe(Reader from, Writer to, StringBuilder captureOutput) throws IOException {
-        char[] buff = new char[1024];
-        int n = from.read(buff);
-        while (n != -1) {
-            if (n > 0 && n <= 1024) {
-                try {
-                    to.write(buff, 0, n);
-                    to.flush();
-                    if (captureOutput != null) {
-                        captureOutput.append(buff, 0, n);
-                    }
-                } catch (Exception ignored) {
-
-                }
-            }
-            n = from.read(buff);
-        }
-    }
 }
@@ -0,0 +1,97 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.ByteArrayOutputStream;
+
+
+/**
+ * Receives the output of a script line by line, decoded with {@link StreamPumps#getCharset()}, without the line
+ * ends. The next chunk of output is only requested once the lines of the previous one were handled.
+ */
+public abstract class LineSubscriber implements OutputSubscriber {
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    private Subscription subscription;
+
+    /**
+     * Handles a line of output.
+     */
+    protected abstract void onLine(String line);
+
+    /**
+     * Called once the last line was handled.
+     */
+    protected void onEnd() {
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(byte[] chunk) {
+        int start = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            if (chunk[i] == '\n') {
+                line.write(chunk, start, i - start);
+                emitLine();
+                start = i + 1;
+            }
+        }
+        line.write(chunk, start, chunk.length - start);
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+    }
+
+    @Override
+    public void onComplete() {
+        if (line.size() > 0) {
+            emitLine();
+        }
+        onEnd();
+    }
+
+    /**
+     * Stops receiving lines.
+     */
+    protected void cancel() {
+        subscription.cancel();
+    }
+
+    private void emitLine() {
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        line.reset();
+        onLine(new String(bytes, 0, length, StreamPumps.getCharset()));
+    }
+}
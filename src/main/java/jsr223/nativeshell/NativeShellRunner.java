@@ -25,25 +25,22 @@
  */
 package jsr223.nativeshell;
 
-import static jsr223.nativeshell.IOUtils.pipe;
 import static jsr223.nativeshell.StringUtils.toEmptyStringIfNull;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
@@ -54,6 +51,11 @@ import org.ow2.proactive.scheduler.task.SchedulerVars;
 import org.ow2.proactive.scripting.Script;
 import org.ow2.proactive.utils.CookieBasedProcessTreeKiller;
 
+import jsr223.nativeshell.ScriptFileCache.ScriptFile;
+import jsr223.nativeshell.StreamPumps.OutputPump;
+import jsr223.nativeshell.bash.Bash;
+import jsr223.nativeshell.bash.BashForkServer;
+
 
 public class NativeShellRunner {
 
@@ -65,7 +67,7 @@ public class NativeShellRunner {
         this.nativeShell = nativeShell;
     }
 
-    private boolean isVersionCheckEnabled() {
+    static boolean isVersionCheckEnabled() {
         String versionCheckProperty = System.getProperty(NativeShellScriptEngine.ENABLE_VERSION_PROPERTY_NAME);
         if (versionCheckProperty != null) {
             try {
@@ -101,33 +103,191 @@ public class NativeShellRunner {
         }
     }
 
-    public int run(String command, ScriptContext scriptContext, StringBuilder captureOutput) throws ScriptException {
-        File commandAsTemporaryFile = commandAsTemporaryFile(command.trim());
+    public int run(String command, ScriptContext scriptContext, OutputCapture captureOutput) throws ScriptException {
+        return run(command, scriptContext, captureOutput, null);
+    }
+
+    public int run(String command, ScriptContext scriptContext, OutputCapture captureOutput,
+            OutputCapture captureError) throws ScriptException {
+        return run(command, scriptContext, captureOutput, captureError, null);
+    }
+
+    /**
+     * Runs the command, its output also goes to the subscriber if not null.
+     */
+    public int run(String command, ScriptContext scriptContext, OutputCapture captureOutput,
+            OutputCapture captureError, OutputSubscriber outputSubscriber) throws ScriptException {
+        ProcessWatchdog watchdog = ProcessWatchdog.create(scriptContext);
+        OutputRedirects redirects = OutputRedirects.create(scriptContext);
+        ScriptInput scriptInput = ScriptInput.create(scriptContext);
+        ScriptCommand scriptCommand = createScriptCommand(command.trim(), scriptContext);
+        scriptCommand.outputSubscriber = outputSubscriber;
+        redirects.apply(scriptCommand.processBuilder,
+                        captureOutput != null || outputSubscriber != null,
+                        captureError != null);
         try {
-            int exitValue = run(commandAsTemporaryFile, scriptContext, captureOutput);
-            return exitValue;
+            CookieBasedProcessTreeKiller processTreeKiller = createProcessTreeKiller(scriptContext,
+                                                                                     scriptCommand.environment);
+            return run(scriptCommand,
+                       scriptInput,
+                       scriptContext.getWriter(),
+                       scriptContext.getErrorWriter(),
+                       processTreeKiller,
+                       captureOutput,
+                       captureError,
+                       watchdog);
         } finally {
-            commandAsTemporaryFile.delete();
+            scriptCommand.release();
         }
     }
 
-    private int run(File command, ScriptContext scriptContext, StringBuilder captureOutput) throws ScriptException {
-        ProcessBuilder processBuilder = nativeShell.createProcess(command);
-        Map<String, String> environment = processBuilder.environment();
-        List<String> arguments = getArguments(scriptContext);
+    /**
+     * Starts the command and returns without waiting for it, the returned future completes with the exit value once
+     * the process exited and its output was pumped, or with a {@link ScriptTimeoutException}. Cancelling the future
+     * destroys the process tree.
+     */
+    public CompletableFuture<Integer> runAsync(String command, ScriptContext scriptContext,
+            OutputCapture captureOutput) throws ScriptException {
+        return runAsync(command, scriptContext, captureOutput, null);
+    }
+
+    public CompletableFuture<Integer> runAsync(String command, ScriptContext scriptContext,
+            OutputCapture captureOutput, OutputCapture captureError) throws ScriptException {
+        return runAsync(command, scriptContext, captureOutput, captureError, null);
+    }
+
+    public CompletableFuture<Integer> runAsync(String command, ScriptContext scriptContext,
+            OutputCapture captureOutput, OutputCapture captureError, OutputSubscriber outputSubscriber)
+            throws ScriptException {
+        ProcessWatchdog watchdog = ProcessWatchdog.create(scriptContext);
+        OutputRedirects redirects = OutputRedirects.create(scriptContext);
+        ScriptInput scriptInput = ScriptInput.create(scriptContext);
+        final ScriptCommand scriptCommand = createScriptCommand(command.trim(), scriptContext);
+        scriptCommand.outputSubscriber = outputSubscriber;
+        redirects.apply(scriptCommand.processBuilder,
+                        captureOutput != null || outputSubscriber != null,
+                        captureError != null);
+        try {
+            CookieBasedProcessTreeKiller processTreeKiller = createProcessTreeKiller(scriptContext,
+                                                                                     scriptCommand.environment);
+            final CompletableFuture<Integer> exitValue = runAsync(scriptCommand,
+                                                                  scriptInput,
+                                                                  scriptContext.getWriter(),
+                                                                  scriptContext.getErrorWriter(),
+                                                                  processTreeKiller,
+                                                                  captureOutput,
+                                                                  captureError,
+                                                                  watchdog);
+            // released before completing, so that the results written by the script are applied
+            final CompletableFuture<Integer> released = new CompletableFuture<>();
+            exitValue.whenComplete(new BiConsumer<Integer, Throwable>() {
+                @Override
+                public void accept(Integer exitValue, Throwable throwable) {
+                    scriptCommand.release();
+                    if (throwable != null) {
+                        released.completeExceptionally(throwable);
+                    } else {
+                        released.complete(exitValue);
+                    }
+                }
+            });
+            released.whenComplete(new BiConsumer<Integer, Throwable>() {
+                @Override
+                public void accept(Integer value, Throwable throwable) {
+                    if (released.isCancelled()) {
+                        exitValue.cancel(true);
+                    }
+                }
+            });
+            return released;
+        } catch (RuntimeException e) {
+            scriptCommand.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Bash is given small scripts inline and larger ones ahead of its standard input, the other shells read them
+     * from a cached script file. Bash reads the variables and arguments moved to {@link SpillFiles} back before the
+     * script runs.
+     */
+    private ScriptCommand createScriptCommand(String script, ScriptContext scriptContext) throws ScriptException {
+        FlushPolicy flushPolicy = FlushPolicy.create(scriptContext);
+        Map<String, String> environment = new HashMap<>();
         addBindingsAsEnvironmentVariables(scriptContext, environment);
-        processBuilder.command().addAll(arguments);
-        CookieBasedProcessTreeKiller processTreeKiller = createProcessTreeKiller(scriptContext, environment);
+        List<String> arguments = new ArrayList<>(getArguments(scriptContext));
+        ResultChannel results = createResultChannel(scriptContext, environment);
+        boolean bash = nativeShell instanceof Bash && script.indexOf('\0') < 0;
+        SpillFiles spillFiles;
+        try {
+            spillFiles = spill(environment, arguments, bash ? script : "");
+        } catch (RuntimeException e) {
+            if (results != null) {
+                results.close();
+            }
+            throw e;
+        }
 
-        return run(processBuilder,
-                   scriptContext.getReader(),
-                   scriptContext.getWriter(),
-                   scriptContext.getErrorWriter(),
-                   processTreeKiller,
-                   captureOutput);
+        ScriptCommand scriptCommand;
+        try {
+            if (bash) {
+                scriptCommand = createBashScriptCommand((Bash) nativeShell, spillFiles.bashPrelude() + script);
+            } else {
+                ScriptFile commandAsScriptFile = commandAsScriptFile(script);
+                try {
+                    scriptCommand = new ScriptCommand(nativeShell.createProcess(commandAsScriptFile.getFile()),
+                                                      commandAsScriptFile,
+                                                      null);
+                } catch (ScriptException | RuntimeException e) {
+                    commandAsScriptFile.release();
+                    throw e;
+                }
+            }
+        } catch (ScriptException | RuntimeException e) {
+            spillFiles.delete();
+            if (results != null) {
+                results.close();
+            }
+            throw e;
+        }
+        scriptCommand.spillFiles = spillFiles;
+        scriptCommand.results = results;
+        scriptCommand.flushPolicy = flushPolicy;
+        StreamPumps.mergeOutput(scriptContext, scriptCommand.processBuilder);
+        if (results != null) {
+            results.start();
+        }
+        scriptCommand.environment = environment;
+        scriptCommand.processBuilder.command().addAll(arguments);
+        return scriptCommand;
     }
 
-    private List<String> getArguments(ScriptContext scriptContext) {
+    private static ScriptCommand createBashScriptCommand(Bash bash, String script) {
+        byte[] scriptInput = (script + "\n").getBytes(StreamPumps.getCharset());
+        if (scriptInput.length <= Bash.getInlineScriptMaxLength()) {
+            return new ScriptCommand(bash.createInlineProcess(script), null, null);
+        } else {
+            return new ScriptCommand(bash.createProcessReadingScriptFromInput(scriptInput.length), null, scriptInput);
+        }
+    }
+
+    private static ResultChannel createResultChannel(ScriptContext scriptContext, Map<String, String> environment) {
+        try {
+            return ResultChannel.create(scriptContext, environment);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static SpillFiles spill(Map<String, String> environment, List<String> arguments, String script) {
+        try {
+            return SpillFiles.spill(environment, arguments, Collections.singletonList(script));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static List<String> getArguments(ScriptContext scriptContext) {
         Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
         if (bindings != null && bindings.containsKey(Script.ARGUMENTS_NAME)) {
             if (bindings.get(Script.ARGUMENTS_NAME) instanceof String[]) {
@@ -140,82 +300,218 @@ public class NativeShellRunner {
         return new ArrayList<>();
     }
 
-    private String runAndGetOutput(String command) {
+    String runAndGetOutput(String command) {
         ProcessBuilder processBuilder = nativeShell.createProcess(command);
         StringWriter processOutput = new StringWriter();
-        Reader closedInput = new Reader() {
-            @Override
-            public int read(char[] cbuf, int off, int len) throws IOException {
-                return -1;
-            }
-
-            @Override
-            public void close() throws IOException {
-
-            }
-        };
-        run(processBuilder, closedInput, processOutput, new StringWriter(), null, null);
+        try {
+            run(new ScriptCommand(processBuilder, null, null),
+                ScriptInput.none(),
+                processOutput,
+                new StringWriter(),
+                null,
+                null,
+                null,
+                ProcessWatchdog.withoutTimeouts());
+        } catch (ScriptException e) {
+            throw new RuntimeException(e);
+        }
         return processOutput.toString();
     }
 
-    private static int run(ProcessBuilder processBuilder, Reader processInput, Writer processOutput,
-            Writer processError, final CookieBasedProcessTreeKiller processTreeKiller, StringBuilder captureOutput) {
+    private int run(ScriptCommand scriptCommand, ScriptInput processInput, Writer processOutput, Writer processError,
+            final CookieBasedProcessTreeKiller processTreeKiller, OutputCapture captureOutput,
+            OutputCapture captureError, ProcessWatchdog watchdog) throws ScriptException {
         Process process = null;
-        Thread shutdownHook = null;
+        ProcessGroupKiller processGroupKiller = null;
+        ProcessRegistry.Registration registration = null;
         try {
-            process = processBuilder.start();
-            Thread input = writeProcessInput(process.getOutputStream(), processInput);
-            Thread output = readProcessOutput(process.getInputStream(), processOutput, captureOutput);
-            Thread error = readProcessOutput(process.getErrorStream(), processError, null);
+            boolean processGroupLeader = ProcessGroupKiller.startAsProcessGroupLeader(scriptCommand.processBuilder);
+            boolean inputRedirected = redirectInput(scriptCommand, processInput);
+            process = startProcess(scriptCommand);
+            processGroupKiller = ProcessGroupKiller.create(process, processGroupLeader, processTreeKiller);
+            OutputPump output = pumpOutput(process, processOutput, captureOutput, scriptCommand);
+            OutputPump error = pumpError(process, processError, captureError, scriptCommand);
 
-            input.start();
-            output.start();
-            error.start();
-
-            final Process shutdownHookProcessReference = process;
-            shutdownHook = new Thread() {
-                @Override
-                public void run() {
-                    destroyProcessAndWaitForItToBeDestroyed(shutdownHookProcessReference);
-                    if (processTreeKiller != null) {
-                        processTreeKiller.kill();
-                    }
-                }
-            };
-            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            registration = ProcessRegistry.register(process, processGroupKiller);
+            watchdog.start(process, processGroupKiller, output, error);
+            Future<?> input = pumpInput(process, processInput, scriptCommand, inputRedirected);
 
             process.waitFor();
-            output.join();
-            error.join();
-            input.interrupt(); // TODO better thing to do?
-
+            output.processExited();
+            error.processExited();
+            output.completion().get();
+            error.completion().get();
+            input.cancel(true); // the process exited without reading all of its input
+
+            watchdog.finished();
+            watchdog.check(process.exitValue());
             return process.exitValue();
         } catch (InterruptedException interruptedException) {
             destroyProcessAndWaitForItToBeDestroyed(process);
             // Forward Interrupted Exception
             throw new RuntimeException(interruptedException);
+        } catch (ScriptTimeoutException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
-            if (shutdownHook != null) {
-                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            watchdog.finished();
+            if (process != null) {
+                ProcessAdmission.release();
+            }
+            if (registration != null) {
+                registration.unregister();
+            }
+            if (processGroupKiller != null) {
+                processGroupKiller.kill();
+            } else if (processTreeKiller != null) {
+                processTreeKiller.kill();
             }
+        }
+    }
+
+    private CompletableFuture<Integer> runAsync(ScriptCommand scriptCommand, ScriptInput processInput,
+            Writer processOutput, Writer processError, final CookieBasedProcessTreeKiller processTreeKiller,
+            OutputCapture captureOutput, OutputCapture captureError, ProcessWatchdog watchdog) {
+        Process process;
+        boolean processGroupLeader = ProcessGroupKiller.startAsProcessGroupLeader(scriptCommand.processBuilder);
+        boolean inputRedirected = redirectInput(scriptCommand, processInput);
+        try {
+            process = startProcess(scriptCommand);
+        } catch (IOException e) {
             if (processTreeKiller != null) {
                 processTreeKiller.kill();
             }
+            throw new RuntimeException(e);
+        }
+        ProcessGroupKiller processGroupKiller = null;
+        ProcessRegistry.Registration registration = null;
+        CompletableFuture<Integer> exitValue;
+        try {
+            OutputPump output = pumpOutput(process, processOutput, captureOutput, scriptCommand);
+            OutputPump error = pumpError(process, processError, captureError, scriptCommand);
+
+            processGroupKiller = ProcessGroupKiller.create(process, processGroupLeader, processTreeKiller);
+            registration = ProcessRegistry.register(process, processGroupKiller);
+            watchdog.start(process, processGroupKiller, output, error);
+            Future<?> input = pumpInput(process, processInput, scriptCommand, inputRedirected);
+
+            exitValue = StreamPumps.whenDone(process, input, output, error);
+        } catch (RuntimeException | Error e) {
+            abandon(process, watchdog, registration, processGroupKiller, processTreeKiller);
+            throw e;
+        }
+        final ProcessGroupKiller startedProcessGroupKiller = processGroupKiller;
+        final ProcessRegistry.Registration startedRegistration = registration;
+        exitValue.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer exitValue, Throwable throwable) {
+                ProcessAdmission.release();
+                startedRegistration.unregister();
+                startedProcessGroupKiller.kill();
+            }
+        });
+        return watchdog.guard(exitValue);
+    }
+
+    /**
+     * Undoes the start of a process whose completion could not be awaited, its admission is released.
+     */
+    public static void abandon(Process process, ProcessWatchdog watchdog, ProcessRegistry.Registration registration,
+            ProcessGroupKiller processGroupKiller, CookieBasedProcessTreeKiller processTreeKiller) {
+        watchdog.finished();
+        process.destroyForcibly();
+        ProcessAdmission.release();
+        if (registration != null) {
+            registration.unregister();
+        }
+        if (processGroupKiller != null) {
+            processGroupKiller.kill();
+        } else if (processTreeKiller != null) {
+            processTreeKiller.kill();
+        }
+    }
+
+    /**
+     * The script input of Bash comes first on the process input, which then stays a pipe.
+     */
+    private static boolean redirectInput(ScriptCommand scriptCommand, ScriptInput processInput) {
+        return scriptCommand.scriptInput == null && processInput.redirect(scriptCommand.processBuilder);
+    }
+
+    /**
+     * Feeds the process once watched, the script input of Bash first. The process reads it right away, but a large
+     * script can fill the pipe before it starts reading.
+     */
+    private static Future<?> pumpInput(Process process, ScriptInput processInput, ScriptCommand scriptCommand,
+            boolean inputRedirected) {
+        if (inputRedirected) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (scriptCommand.scriptInput != null) {
+            return processInput.pumpAfter(scriptCommand.scriptInput, process, process.getOutputStream());
+        }
+        return processInput.pump(process, process.getOutputStream());
+    }
+
+    private static OutputPump pumpOutput(Process process, Writer processOutput, OutputCapture captureOutput,
+            ScriptCommand scriptCommand) {
+        if (!OutputRedirects.isOutputPiped(scriptCommand.processBuilder)) {
+            return StreamPumps.noOutput();
         }
+        return StreamPumps.pumpOutput(process,
+                                      process.getInputStream(),
+                                      processOutput,
+                                      captureOutput,
+                                      scriptCommand.flushPolicy,
+                                      scriptCommand.outputSubscriber);
+    }
+
+    private static OutputPump pumpError(Process process, Writer processError, OutputCapture captureError,
+            ScriptCommand scriptCommand) {
+        if (!OutputRedirects.isErrorPiped(scriptCommand.processBuilder)) {
+            return StreamPumps.noOutput();
+        }
+        return StreamPumps.pumpOutput(process,
+                                      process.getErrorStream(),
+                                      processError,
+                                      captureError,
+                                      scriptCommand.flushPolicy);
+    }
+
+    /**
+     * Starts the process once admitted by {@link ProcessAdmission}, which must be told when it exited. Its
+     * environment is the base environment plus the variables of the command.
+     */
+    private Process startProcess(final ScriptCommand scriptCommand) throws IOException {
+        return ProcessAdmission.start(new ProcessAdmission.ProcessStarter() {
+            @Override
+            public Process start() throws IOException {
+                // a fork server subshell cannot lead its own process group, have its streams redirected nor export
+                // variables whose names are not shell identifiers
+                if (nativeShell instanceof Bash && BashForkServer.isEnabled() && !ProcessGroupKiller.isEnabled() &&
+                    scriptCommand.processBuilder.redirectInput().type() == Redirect.Type.PIPE &&
+                    OutputRedirects.isOutputPiped(scriptCommand.processBuilder) &&
+                    OutputRedirects.isErrorPiped(scriptCommand.processBuilder) &&
+                    BashForkServer.canExport(scriptCommand.environment)) {
+                    return BashForkServer.start(scriptCommand.processBuilder, scriptCommand.environment);
+                }
+                BaseEnvironment.apply(scriptCommand.processBuilder, scriptCommand.environment);
+                return scriptCommand.processBuilder.start();
+            }
+        });
     }
 
     private static void destroyProcessAndWaitForItToBeDestroyed(Process process) {
         try {
-            process.destroy();
-            process.waitFor();
+            ProcessWatchdog.destroy(process);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void addBindingsAsEnvironmentVariables(ScriptContext scriptContext, Map<String, String> environment) {
+    public static void addBindingsAsEnvironmentVariables(ScriptContext scriptContext,
+            Map<String, String> environment) {
         for (Map.Entry<String, Object> binding : scriptContext.getBindings(ScriptContext.ENGINE_SCOPE).entrySet()) {
             String bindingKey = binding.getKey();
             Object bindingValue = binding.getValue();
@@ -249,7 +545,7 @@ public class NativeShellRunner {
         return processKiller;
     }
 
-    private void addMapBindingAsEnvironmentVariable(String bindingKey, Map<?, ?> bindingValue,
+    private static void addMapBindingAsEnvironmentVariable(String bindingKey, Map<?, ?> bindingValue,
             Map<String, String> environment) {
         for (Map.Entry<?, ?> entry : ((Map<?, ?>) bindingValue).entrySet()) {
             environment.put(bindingKey + "_" + entry.getKey(),
@@ -257,13 +553,13 @@ public class NativeShellRunner {
         }
     }
 
-    private void addCollectionBindingAsEnvironmentVariable(String bindingKey, Collection bindingValue,
+    private static void addCollectionBindingAsEnvironmentVariable(String bindingKey, Collection bindingValue,
             Map<String, String> environment) {
         Object[] bindingValueAsArray = bindingValue.toArray();
         addArrayBindingAsEnvironmentVariable(bindingKey, bindingValueAsArray, environment);
     }
 
-    private void addArrayBindingAsEnvironmentVariable(String bindingKey, Object[] bindingValue,
+    private static void addArrayBindingAsEnvironmentVariable(String bindingKey, Object[] bindingValue,
             Map<String, String> environment) {
         for (int i = 0; i < bindingValue.length; i++) {
             environment.put(bindingKey + "_" + i,
@@ -271,43 +567,49 @@ public class NativeShellRunner {
         }
     }
 
-    private static Thread readProcessOutput(final InputStream processOutput, final Writer contextWriter,
-            StringBuilder captureOutput) {
-        return new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(processOutput));
-                        BufferedWriter bufferedWriter = new BufferedWriter(contextWriter)) {
-                    pipe(bufferedReader, bufferedWriter, captureOutput);
-                } catch (Exception ignored) {
-                }
-            }
-        });
-    }
-
-    private static Thread writeProcessInput(final OutputStream processOutput, final Reader contextWriter) {
-        return new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try (BufferedReader bufferedReader = new BufferedReader(contextWriter);
-                        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(processOutput)) {
-                    pipe(bufferedReader, outputStreamWriter, null);
-                } catch (Exception ignored) {
-                }
-            }
-        });
-    }
-
-    private File commandAsTemporaryFile(String command) {
+    private ScriptFile commandAsScriptFile(String command) {
         try {
-            File commandAsFile = File.createTempFile("jsr223nativeshell-", nativeShell.getFileExtension());
-            commandAsFile.setExecutable(true);
-            // we add new line to the command because it is mandatory for Rexx scripts
-            IOUtils.writeStringToFile(command + System.lineSeparator(), commandAsFile);
-            return commandAsFile;
+            return ScriptFileCache.acquire(command, nativeShell.getFileExtension());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static class ScriptCommand {
+
+        private final ProcessBuilder processBuilder;
+
+        // added to the base environment
+        private Map<String, String> environment = new HashMap<>();
+
+        private final ScriptFile scriptFile;
+
+        private final byte[] scriptInput;
+
+        private SpillFiles spillFiles;
+
+        private ResultChannel results;
+
+        private FlushPolicy flushPolicy = FlushPolicy.line();
+
+        private OutputSubscriber outputSubscriber;
+
+        ScriptCommand(ProcessBuilder processBuilder, ScriptFile scriptFile, byte[] scriptInput) {
+            this.processBuilder = processBuilder;
+            this.scriptFile = scriptFile;
+            this.scriptInput = scriptInput;
+        }
+
+        void release() {
+            if (scriptFile != null) {
+                scriptFile.release();
+            }
+            if (spillFiles != null) {
+                spillFiles.delete();
+            }
+            if (results != null) {
+                results.close();
+            }
+        }
+    }
 }
@@ -25,9 +25,12 @@
  */
 package jsr223.nativeshell;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import javax.script.*;
 
@@ -44,37 +47,184 @@ public class NativeShellScriptEngine extends AbstractScriptEngine {
 
     public static final String EXIT_VALUE_BINDING_NAME = "EXIT_VALUE";
 
+    /**
+     * Set to the {@link ScriptTimeoutException.Reason} of a script killed by its watchdog, removed otherwise.
+     */
+    public static final String TIMEOUT_BINDING_NAME = "TIMEOUT";
+
     public static final String CONTENT_TYPE = "content.type";
 
     private NativeShell nativeShell;
 
     public NativeShellScriptEngine(NativeShell nativeShell) {
         this.nativeShell = nativeShell;
+        ScriptFileCache.sweepOrphansOnce();
     }
 
     @Override
     public Object eval(String script, ScriptContext context) throws ScriptException {
-        StringBuilder captureOutput = null;
-        String contentType = getOutputContentType(context);
-        if (contentType != null) {
-            captureOutput = new StringBuilder();
+        return eval(script, context, null);
+    }
+
+    /**
+     * Evaluates the script, its output also goes to the subscriber while it runs.
+     */
+    public Object eval(String script, ScriptContext context, OutputSubscriber outputSubscriber)
+            throws ScriptException {
+        OutputCapture captureOutput = createOutputCapture(context);
+        TailOutputCapture errorTail = TailOutputCapture.forError(context);
+        int exitValue;
+        try {
+            exitValue = new NativeShellRunner(nativeShell).run(script,
+                                                               context,
+                                                               captureOutput,
+                                                               errorTail,
+                                                               outputSubscriber);
+        } catch (ScriptTimeoutException e) {
+            discard(captureOutput);
+            setTimeout(context, e);
+            throw e;
+        } catch (RuntimeException e) {
+            discard(captureOutput);
+            throw e;
         }
-        int exitValue = new NativeShellRunner(nativeShell).run(script, context, captureOutput);
-        if (context.getBindings(ScriptContext.ENGINE_SCOPE).containsKey(SchedulerConstants.VARIABLES_BINDING_NAME)) {
-            Map<String, Serializable> variables = (Map<String, Serializable>) context.getBindings(ScriptContext.ENGINE_SCOPE)
-                                                                                     .get(SchedulerConstants.VARIABLES_BINDING_NAME);
+        return toResult(exitValue, context, captureOutput, errorTail);
+    }
+
+    /**
+     * Evaluates the script without waiting for it. The returned future completes with what {@link #eval} would
+     * return, or with the exception it would throw. Cancelling it destroys the process tree of the script.
+     */
+    public CompletableFuture<Object> evalAsync(String script, final ScriptContext context) throws ScriptException {
+        return evalAsync(script, context, null);
+    }
+
+    /**
+     * Evaluates the script without waiting for it, its output also goes to the subscriber while it runs.
+     */
+    public CompletableFuture<Object> evalAsync(String script, final ScriptContext context,
+            OutputSubscriber outputSubscriber) throws ScriptException {
+        final OutputCapture captureOutput = createOutputCapture(context);
+        final TailOutputCapture errorTail = TailOutputCapture.forError(context);
+        final CompletableFuture<Integer> exitValue = new NativeShellRunner(nativeShell).runAsync(script,
+                                                                                                 context,
+                                                                                                 captureOutput,
+                                                                                                 errorTail,
+                                                                                                 outputSubscriber);
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        exitValue.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer exitValue, Throwable throwable) {
+                if (throwable instanceof ScriptTimeoutException) {
+                    setTimeout(context, (ScriptTimeoutException) throwable);
+                }
+                if (throwable != null) {
+                    discard(captureOutput);
+                    result.completeExceptionally(throwable);
+                    return;
+                }
+                try {
+                    result.complete(toResult(exitValue, context, captureOutput, errorTail));
+                } catch (ScriptException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        result.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object value, Throwable throwable) {
+                if (result.isCancelled()) {
+                    exitValue.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sets the exit value of a script in the bindings of its context and in the variables map if there is one.
+     */
+    public static void setExitValue(ScriptContext context, int exitValue) {
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        Map<String, Serializable> variables = getVariables(bindings);
+        if (variables != null) {
             variables.put(EXIT_VALUE_BINDING_NAME, exitValue);
+            variables.remove(TIMEOUT_BINDING_NAME);
+        }
+        bindings.put(EXIT_VALUE_BINDING_NAME, exitValue);
+        bindings.remove(TIMEOUT_BINDING_NAME);
+    }
+
+    /**
+     * Sets the exit value of a script killed by its watchdog and why it was killed.
+     */
+    public static void setTimeout(ScriptContext context, ScriptTimeoutException timeout) {
+        setExitValue(context, timeout.getExitValue());
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        Map<String, Serializable> variables = getVariables(bindings);
+        if (variables != null) {
+            variables.put(TIMEOUT_BINDING_NAME, timeout.getReason().name());
         }
-        context.getBindings(ScriptContext.ENGINE_SCOPE).put(EXIT_VALUE_BINDING_NAME, exitValue);
+        bindings.put(TIMEOUT_BINDING_NAME, timeout.getReason().name());
+    }
+
+    /**
+     * @return the variables map of the scheduler, null if the bindings have none
+     */
+    static Map<String, Serializable> getVariables(Bindings bindings) {
+        Object variables = bindings.get(SchedulerConstants.VARIABLES_BINDING_NAME);
+        if (!(variables instanceof Map)) {
+            return null;
+        }
+        // the scheduler binds a Map<String, Serializable>, the engines only put serializable values in it
+        @SuppressWarnings("unchecked")
+        Map<String, Serializable> variablesMap = (Map<String, Serializable>) variables;
+        return variablesMap;
+    }
+
+    /**
+     * With a content type, the output is captured as a result, whole or only its tail.
+     */
+    private static OutputCapture createOutputCapture(ScriptContext context) throws ScriptException {
+        if (getOutputContentType(context) == null) {
+            return null;
+        }
+        TailOutputCapture outputTail = TailOutputCapture.forOutput(context);
+        return outputTail != null ? outputTail : new FullOutputCapture();
+    }
+
+    /**
+     * With a content type, the result is the output as written by the script: a byte array, or the file it was
+     * written to when it is large, see {@link FullOutputCapture#getResult()}.
+     */
+    private static Object toResult(int exitValue, ScriptContext context, OutputCapture captureOutput,
+            TailOutputCapture errorTail) throws ScriptException {
+        setExitValue(context, exitValue);
         if (exitValue != 0) {
-            throw new ScriptException("Script failed with exit code " + exitValue);
+            discard(captureOutput);
+            throw new ScriptException(TailOutputCapture.addErrorTail("Script failed with exit code " + exitValue,
+                                                                     errorTail));
+        }
+        if (captureOutput instanceof TailOutputCapture) {
+            return ((TailOutputCapture) captureOutput).getTail();
         }
-        if (contentType != null) {
-            return captureOutput.toString().getBytes();
+        if (captureOutput != null) {
+            try {
+                return ((FullOutputCapture) captureOutput).getResult();
+            } catch (IOException e) {
+                discard(captureOutput);
+                throw new ScriptException(e);
+            }
         }
         return exitValue;
     }
 
+    private static void discard(OutputCapture captureOutput) {
+        if (captureOutput instanceof FullOutputCapture) {
+            ((FullOutputCapture) captureOutput).discard();
+        }
+    }
+
     @Override
     public Object eval(Reader reader, ScriptContext context) throws ScriptException {
         return eval(IOUtils.toString(reader), context);
@@ -90,7 +240,7 @@ public class NativeShellScriptEngine extends AbstractScriptEngine {
         return nativeShell.getScriptEngineFactory();
     }
 
-    private String getOutputContentType(ScriptContext scriptContext) {
+    private static String getOutputContentType(ScriptContext scriptContext) {
         Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
         if (bindings != null && bindings.containsKey(SchedulerConstants.GENERIC_INFO_BINDING_NAME)) {
             Map<String, String> genericInfo = (Map<String, String>) scriptContext.getBindings(ScriptContext.ENGINE_SCOPE)
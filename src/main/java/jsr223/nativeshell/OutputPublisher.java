@@ -0,0 +1,193 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Delivers the output of a process to an {@link OutputSubscriber} on a thread of its own, so that a slow
+ * subscriber does not hold a pump thread. It buffers at most {@value #MAX_BUFFERED_BYTES} bytes, the pump stops
+ * reading the output while it is not {@link #isReady() ready}.
+ */
+final class OutputPublisher implements OutputSubscriber.Subscription {
+
+    static final int MAX_BUFFERED_BYTES = 1024 * 1024;
+
+    private static final ExecutorService deliveries = createDeliveries();
+
+    private final OutputSubscriber subscriber;
+
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+
+    private final CompletableFuture<Void> delivered = new CompletableFuture<>();
+
+    private final Runnable delivery = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    private long bufferedBytes;
+
+    private long demand;
+
+    private boolean subscribed;
+
+    private boolean completed;
+
+    private boolean cancelled;
+
+    private boolean delivering;
+
+    OutputPublisher(OutputSubscriber subscriber) {
+        this.subscriber = subscriber;
+        scheduleDelivery();
+    }
+
+    synchronized boolean isReady() {
+        return cancelled || bufferedBytes < MAX_BUFFERED_BYTES;
+    }
+
+    synchronized void publish(byte[] bytes, int length) {
+        if (cancelled || length == 0) {
+            return;
+        }
+        chunks.add(Arrays.copyOf(bytes, length));
+        bufferedBytes += length;
+        scheduleDelivery();
+    }
+
+    synchronized void complete() {
+        completed = true;
+        scheduleDelivery();
+    }
+
+    /**
+     * Completes once the subscriber completed, failed or cancelled.
+     */
+    CompletableFuture<Void> delivered() {
+        return delivered;
+    }
+
+    @Override
+    public synchronized void request(long n) {
+        if (n <= 0) {
+            return;
+        }
+        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        scheduleDelivery();
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            chunks.clear();
+            bufferedBytes = 0;
+        }
+        delivered.complete(null);
+    }
+
+    private synchronized void scheduleDelivery() {
+        if (!delivering) {
+            delivering = true;
+            deliveries.execute(delivery);
+        }
+    }
+
+    private void deliver() {
+        while (true) {
+            byte[] chunk = null;
+            boolean subscribe = false;
+            boolean complete = false;
+            synchronized (this) {
+                if (cancelled) {
+                    delivering = false;
+                    return;
+                }
+                if (!subscribed) {
+                    subscribed = true;
+                    subscribe = true;
+                } else if (demand > 0 && !chunks.isEmpty()) {
+                    chunk = chunks.poll();
+                    bufferedBytes -= chunk.length;
+                    demand--;
+                } else if (completed && chunks.isEmpty()) {
+                    cancelled = true;
+                    complete = true;
+                } else {
+                    delivering = false;
+                    return;
+                }
+            }
+            try {
+                if (subscribe) {
+                    subscriber.onSubscribe(this);
+                } else if (chunk != null) {
+                    subscriber.onNext(chunk);
+                } else if (complete) {
+                    subscriber.onComplete();
+                    delivered.complete(null);
+                }
+            } catch (Throwable throwable) {
+                cancel();
+                subscriber.onError(throwable);
+            }
+        }
+    }
+
+    private static ExecutorService createDeliveries() {
+        // subscribers may block, each delivery in progress has its thread
+        return new ThreadPoolExecutor(0,
+                                      Integer.MAX_VALUE,
+                                      60,
+                                      TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(),
+                                      new DeliveryThreadFactory());
+    }
+
+    private static class DeliveryThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jsr223-nativeshell-subscriber-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.File;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.Locale;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+
+/**
+ * Streams of a process that the kernel writes directly, without a pump copying them through the JVM, read from the
+ * bindings or else from the generic information {@value #OUTPUT_REDIRECT_NAME} and {@value #ERROR_REDIRECT_NAME}:
+ * <ul>
+ * <li>{@code discard}: the stream goes to the null device</li>
+ * <li>{@code inherit}: the stream is the one of the JVM</li>
+ * <li>{@code file:<path>}: the stream is appended to the file</li>
+ * </ul>
+ * A stream is still pumped to the writer of the script context when it is not set, or when it is captured.
+ */
+public final class OutputRedirects {
+
+    public static final String OUTPUT_REDIRECT_NAME = "NATIVE_SHELL_OUTPUT_REDIRECT";
+
+    public static final String ERROR_REDIRECT_NAME = "NATIVE_SHELL_ERROR_REDIRECT";
+
+    private static final String FILE_PREFIX = "file:";
+
+    private static final File NULL_DEVICE = new File(File.separatorChar == '\\' ? "NUL" : "/dev/null");
+
+    private static final OutputRedirects NONE = new OutputRedirects(Redirect.PIPE, Redirect.PIPE);
+
+    private final Redirect output;
+
+    private final Redirect error;
+
+    private OutputRedirects(Redirect output, Redirect error) {
+        this.output = output;
+        this.error = error;
+    }
+
+    public static OutputRedirects create(ScriptContext scriptContext) throws ScriptException {
+        Redirect output = parse(OUTPUT_REDIRECT_NAME, ScriptOptions.get(scriptContext, OUTPUT_REDIRECT_NAME));
+        Redirect error = parse(ERROR_REDIRECT_NAME, ScriptOptions.get(scriptContext, ERROR_REDIRECT_NAME));
+        return output == Redirect.PIPE && error == Redirect.PIPE ? NONE : new OutputRedirects(output, error);
+    }
+
+    /**
+     * Every stream is pumped.
+     */
+    public static OutputRedirects none() {
+        return NONE;
+    }
+
+    private static Redirect parse(String name, String value) throws ScriptException {
+        if (value == null) {
+            return Redirect.PIPE;
+        }
+        String lowerCaseValue = value.toLowerCase(Locale.ROOT);
+        if (lowerCaseValue.equals("discard")) {
+            return Redirect.to(NULL_DEVICE);
+        } else if (lowerCaseValue.equals("inherit")) {
+            return Redirect.INHERIT;
+        } else if (lowerCaseValue.startsWith(FILE_PREFIX) && value.length() > FILE_PREFIX.length()) {
+            return Redirect.appendTo(new File(value.substring(FILE_PREFIX.length())));
+        }
+        throw new ScriptException("Invalid " + name + ", discard, inherit or file:<path> is expected: " + value);
+    }
+
+    /**
+     * Redirects the streams that are not captured. An error output merged into the output follows it.
+     */
+    public void apply(ProcessBuilder processBuilder, boolean outputCaptured, boolean errorCaptured) {
+        if (!outputCaptured) {
+            processBuilder.redirectOutput(output);
+        }
+        if (!errorCaptured) {
+            processBuilder.redirectError(error);
+        }
+    }
+
+    /**
+     * @return true if the output of the process is read by the JVM
+     */
+    public static boolean isOutputPiped(ProcessBuilder processBuilder) {
+        return processBuilder.redirectOutput().type() == Redirect.Type.PIPE;
+    }
+
+    /**
+     * @return true if the error output of the process is read by the JVM on its own
+     */
+    public static boolean isErrorPiped(ProcessBuilder processBuilder) {
+        return !processBuilder.redirectErrorStream() && processBuilder.redirectError().type() == Redirect.Type.PIPE;
+    }
+}
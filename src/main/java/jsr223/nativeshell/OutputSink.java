@@ -0,0 +1,218 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+
+/**
+ * Where the output of a process goes. Its bytes are given as they are to a {@link ByteWriter} of the same charset
+ * and to the {@link OutputCapture}, and decoded once for any other writer. The writer is flushed as its
+ * {@link FlushPolicy} says. An {@link OutputPublisher} also gets the bytes, the sink is not ready for more while
+ * the publisher is not.
+ */
+final class OutputSink {
+
+    private final Writer writer;
+
+    private final ByteWriter byteWriter;
+
+    private final OutputCapture captureOutput;
+
+    private final CharsetDecoder decoder;
+
+    private final FlushPolicy flushPolicy;
+
+    private final OutputPublisher publisher;
+
+    private long unflushedBytes;
+
+    private long unflushedSinceNanos;
+
+    // the first bytes of a character split between two writes
+    private byte[] undecoded = new byte[0];
+
+    private volatile long lastOutputNanos = System.nanoTime();
+
+    OutputSink(Writer writer, OutputCapture captureOutput, Charset charset, FlushPolicy flushPolicy) {
+        this(writer, captureOutput, charset, flushPolicy, null);
+    }
+
+    OutputSink(Writer writer, OutputCapture captureOutput, Charset charset, FlushPolicy flushPolicy,
+            OutputPublisher publisher) {
+        this.writer = writer;
+        this.byteWriter = writer instanceof ByteWriter && ((ByteWriter) writer).getCharset().equals(charset)
+                          ? (ByteWriter) writer : null;
+        this.captureOutput = captureOutput;
+        this.decoder = charset.newDecoder()
+                              .onMalformedInput(CodingErrorAction.REPLACE)
+                              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.flushPolicy = flushPolicy;
+        this.publisher = publisher;
+    }
+
+    /**
+     * The {@link System#nanoTime()} of the last output, or of the creation of the sink.
+     */
+    long getLastOutputNanos() {
+        return lastOutputNanos;
+    }
+
+    void write(byte[] bytes, int length) throws IOException {
+        lastOutputNanos = System.nanoTime();
+        if (byteWriter != null) {
+            byteWriter.write(bytes, 0, length);
+        } else {
+            decode(bytes, length);
+        }
+        written(bytes, length);
+        if (captureOutput != null) {
+            captureOutput.write(bytes, 0, length);
+        }
+        if (publisher != null) {
+            publisher.publish(bytes, length);
+        }
+    }
+
+    boolean isReady() {
+        return publisher == null || publisher.isReady();
+    }
+
+    /**
+     * Tells the sink that the process has no more output for now.
+     */
+    void idle() throws IOException {
+        if (unflushedBytes == 0) {
+            return;
+        }
+        FlushPolicy.Mode mode = flushPolicy.getMode();
+        boolean due = System.nanoTime() - unflushedSinceNanos >= flushPolicy.getIntervalNanos();
+        if (mode == FlushPolicy.Mode.LINE || mode == FlushPolicy.Mode.INTERVAL && due) {
+            flush();
+        }
+    }
+
+    /**
+     * Decodes what is left and closes the writer.
+     */
+    void close() throws IOException {
+        try {
+            if (byteWriter == null) {
+                decode(ByteBuffer.wrap(undecoded), true);
+            }
+        } finally {
+            if (publisher != null) {
+                publisher.complete();
+            }
+            writer.close();
+        }
+    }
+
+    private void written(byte[] bytes, int length) throws IOException {
+        if (unflushedBytes == 0) {
+            unflushedSinceNanos = lastOutputNanos;
+        }
+        unflushedBytes += length;
+        switch (flushPolicy.getMode()) {
+            case LINE:
+                if (containsLineEnd(bytes, length)) {
+                    flush();
+                }
+                break;
+            case INTERVAL:
+                if (unflushedBytes >= flushPolicy.getMaxUnflushedBytes() ||
+                    lastOutputNanos - unflushedSinceNanos >= flushPolicy.getIntervalNanos()) {
+                    flush();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void flush() throws IOException {
+        unflushedBytes = 0;
+        writer.flush();
+    }
+
+    private static boolean containsLineEnd(byte[] bytes, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void decode(byte[] bytes, int length) throws IOException {
+        ByteBuffer input;
+        if (undecoded.length == 0) {
+            input = ByteBuffer.wrap(bytes, 0, length);
+        } else {
+            byte[] joined = Arrays.copyOf(undecoded, undecoded.length + length);
+            System.arraycopy(bytes, 0, joined, undecoded.length, length);
+            input = ByteBuffer.wrap(joined);
+        }
+        decode(input, false);
+        undecoded = new byte[input.remaining()];
+        input.get(undecoded);
+    }
+
+    private void decode(ByteBuffer input, boolean endOfInput) throws IOException {
+        char[] chars = BufferPool.acquireChars();
+        try {
+            CharBuffer output = CharBuffer.wrap(chars);
+            CoderResult result;
+            do {
+                result = decoder.decode(input, output, endOfInput);
+                if (endOfInput && result.isUnderflow()) {
+                    result = decoder.flush(output);
+                }
+                writeDecoded(chars, output.position());
+                output.clear();
+            } while (result.isOverflow());
+            if (endOfInput) {
+                decoder.reset();
+            }
+        } finally {
+            BufferPool.release(chars);
+        }
+    }
+
+    private void writeDecoded(char[] chars, int length) throws IOException {
+        if (length > 0) {
+            writer.write(chars, 0, length);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+/**
+ * Receives the output of a script while it runs, as the chunks of bytes it wrote, only as many as it requested.
+ * While it is behind, the output is no longer read from the process, which then waits when it writes.
+ * <p>
+ * The methods are called in order, never concurrently, on a thread of the engines: {@link #onSubscribe} first,
+ * then {@link #onNext} for each requested chunk, and {@link #onComplete} once the output ended, unless the
+ * subscription was cancelled. The evaluation only ends once the subscriber completed or cancelled. See
+ * {@link LineSubscriber} to receive lines.
+ */
+public interface OutputSubscriber {
+
+    void onSubscribe(Subscription subscription);
+
+    void onNext(byte[] chunk);
+
+    /**
+     * Called instead of {@link #onComplete()} if a method of the subscriber threw an exception, the subscription
+     * is then cancelled.
+     */
+    void onError(Throwable throwable);
+
+    void onComplete();
+
+    interface Subscription {
+
+        /**
+         * Asks for the given number of chunks more.
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery, the rest of the output only goes to the writer of the script context.
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Node wide admission control of the processes started by the engines.
+ * <p>
+ * At most {@value #MAX_PROCESSES_PROPERTY_NAME} processes are alive at the same time and at most
+ * {@value #SPAWN_RATE_PROPERTY_NAME} processes are started per second, with bursts of
+ * {@value #SPAWN_BURST_PROPERTY_NAME}. Both are unlimited by default, the starts that exceed them wait in
+ * arrival order. A start failing because the system is temporarily out of processes or memory is retried up to
+ * {@value #SPAWN_RETRIES_PROPERTY_NAME} times with an exponential backoff.
+ */
+public final class ProcessAdmission {
+
+    public static final String MAX_PROCESSES_PROPERTY_NAME = "jsr223.nativeshell.maxProcesses";
+
+    public static final String SPAWN_RATE_PROPERTY_NAME = "jsr223.nativeshell.spawnRate";
+
+    public static final String SPAWN_BURST_PROPERTY_NAME = "jsr223.nativeshell.spawnBurst";
+
+    public static final String SPAWN_RETRIES_PROPERTY_NAME = "jsr223.nativeshell.spawnRetries";
+
+    private static final int DEFAULT_SPAWN_RETRIES = 3;
+
+    private static final long FIRST_RETRY_DELAY_MILLIS = 10;
+
+    private static final int maxProcesses = Integer.getInteger(MAX_PROCESSES_PROPERTY_NAME, 0);
+
+    private static final Semaphore processSlots = new Semaphore(maxProcesses > 0 ? maxProcesses : Integer.MAX_VALUE,
+                                                                true);
+
+    private static final SpawnRateLimiter spawnRateLimiter = new SpawnRateLimiter();
+
+    private static final AtomicInteger waitingStarts = new AtomicInteger();
+
+    private static final AtomicInteger liveProcesses = new AtomicInteger();
+
+    private static final AtomicLong startedProcesses = new AtomicLong();
+
+    private static final AtomicLong totalWaitNanos = new AtomicLong();
+
+    private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private static final AtomicLong retriedStarts = new AtomicLong();
+
+    private static final AtomicLong failedStarts = new AtomicLong();
+
+    private ProcessAdmission() {
+    }
+
+    public interface ProcessStarter {
+        Process start() throws IOException;
+    }
+
+    /**
+     * Starts a process once it is admitted. Unless it throws, {@link #release()} must be called once the process
+     * exited.
+     */
+    public static Process start(ProcessStarter processStarter) throws IOException {
+        long waitStart = System.nanoTime();
+        waitingStarts.incrementAndGet();
+        try {
+            processSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to start a process");
+        } finally {
+            waitingStarts.decrementAndGet();
+        }
+        boolean started = false;
+        try {
+            spawnRateLimiter.acquire();
+            recordWait(System.nanoTime() - waitStart);
+            Process process = startWithRetries(processStarter);
+            started = true;
+            liveProcesses.incrementAndGet();
+            startedProcesses.incrementAndGet();
+            return process;
+        } finally {
+            if (!started) {
+                failedStarts.incrementAndGet();
+                processSlots.release();
+            }
+        }
+    }
+
+    /**
+     * Gives back the slot of a process that exited.
+     */
+    public static void release() {
+        liveProcesses.decrementAndGet();
+        processSlots.release();
+    }
+
+    public static Statistics getStatistics() {
+        return new Statistics(waitingStarts.get(),
+                              liveProcesses.get(),
+                              startedProcesses.get(),
+                              totalWaitNanos.get(),
+                              maxWaitNanos.get(),
+                              retriedStarts.get(),
+                              failedStarts.get());
+    }
+
+    private static Process startWithRetries(ProcessStarter processStarter) throws IOException {
+        int maxRetries = Integer.getInteger(SPAWN_RETRIES_PROPERTY_NAME, DEFAULT_SPAWN_RETRIES);
+        long retryDelayMillis = FIRST_RETRY_DELAY_MILLIS;
+        for (int retry = 0;; retry++) {
+            try {
+                return processStarter.start();
+            } catch (IOException e) {
+                if (retry >= maxRetries || !isTransientStartFailure(e)) {
+                    throw e;
+                }
+            }
+            retriedStarts.incrementAndGet();
+            try {
+                // the jitter keeps the processes that failed together from retrying together
+                Thread.sleep(retryDelayMillis + ThreadLocalRandom.current().nextLong(retryDelayMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry starting a process");
+            }
+            retryDelayMillis *= 2;
+        }
+    }
+
+    // EAGAIN and ENOMEM as reported by ProcessBuilder.start() on Linux, EAGAIN is 35 on Mac OS
+    private static boolean isTransientStartFailure(IOException e) {
+        String message = String.valueOf(e.getMessage());
+        return message.contains("error=11,") || message.contains("error=12,") || message.contains("error=35,");
+    }
+
+    private static void recordWait(long waitNanos) {
+        totalWaitNanos.addAndGet(waitNanos);
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * Token bucket whose tokens are reserved on arrival, a start waits for the token it reserved.
+     */
+    private static class SpawnRateLimiter {
+
+        private final double ratePerNano;
+
+        private final double burst;
+
+        private double tokens;
+
+        private long lastRefill = System.nanoTime();
+
+        SpawnRateLimiter() {
+            double ratePerSecond = Double.parseDouble(System.getProperty(SPAWN_RATE_PROPERTY_NAME, "0"));
+            this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = Math.max(1, Double.parseDouble(System.getProperty(SPAWN_BURST_PROPERTY_NAME,
+                                                                           String.valueOf(ratePerSecond))));
+            this.tokens = burst;
+        }
+
+        void acquire() throws InterruptedIOException {
+            if (ratePerNano <= 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+                lastRefill = now;
+                tokens--;
+                waitNanos = tokens >= 0 ? 0 : (long) (-tokens / ratePerNano);
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to start a process");
+                }
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the admission counters, to size the nodes.
+     */
+    public static final class Statistics {
+
+        private final int waitingStarts;
+
+        private final int liveProcesses;
+
+        private final long startedProcesses;
+
+        private final long totalWaitNanos;
+
+        private final long maxWaitNanos;
+
+        private final long retriedStarts;
+
+        private final long failedStarts;
+
+        Statistics(int waitingStarts, int liveProcesses, long startedProcesses, long totalWaitNanos,
+                long maxWaitNanos, long retriedStarts, long failedStarts) {
+            this.waitingStarts = waitingStarts;
+            this.liveProcesses = liveProcesses;
+            this.startedProcesses = startedProcesses;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.retriedStarts = retriedStarts;
+            this.failedStarts = failedStarts;
+        }
+
+        /**
+         * The starts waiting for a process slot.
+         */
+        public int getWaitingStarts() {
+            return waitingStarts;
+        }
+
+        public int getLiveProcesses() {
+            return liveProcesses;
+        }
+
+        public long getStartedProcesses() {
+            return startedProcesses;
+        }
+
+        /**
+         * Time spent waiting for a process slot and a spawn token, summed over the started processes.
+         */
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        public long getRetriedStarts() {
+            return retriedStarts;
+        }
+
+        public long getFailedStarts() {
+            return failedStarts;
+        }
+
+        @Override
+        public String toString() {
+            return "waiting=" + waitingStarts + " live=" + liveProcesses + " started=" + startedProcesses +
+                   " totalWaitMs=" + TimeUnit.NANOSECONDS.toMillis(totalWaitNanos) + " maxWaitMs=" +
+                   TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " retried=" + retriedStarts + " failed=" +
+                   failedStarts;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.ow2.proactive.utils.CookieBasedProcessTreeKiller;
+
+
+/**
+ * Kills what is left of the process tree of a script once it ended.
+ * <p>
+ * When enabled with the system property {@value #ENABLE_PROCESS_GROUP_KILL_PROPERTY_NAME}, the processes are
+ * started by setsid as the leaders of their own session and process group, so that killing the tree is a single
+ * signal sent to the group. Where {@code /proc} lists the processes, the group is only signalled when it still has
+ * members, so that most scripts end without starting a {@code kill} process, which is then admitted like the
+ * processes of the scripts. The process tree killer, which scans the processes for the cookie of the script, only
+ * runs when the group still had members, since some of them might have left it, or when the process could not be
+ * made a group leader.
+ */
+public final class ProcessGroupKiller {
+
+    public static final String ENABLE_PROCESS_GROUP_KILL_PROPERTY_NAME = "jsr223.nativeshell.processGroupKill";
+
+    private static final String SETSID = findExecutable("setsid");
+
+    private static final String KILL = findExecutable("kill");
+
+    private static final File PROC = new File("/proc");
+
+    private final long processGroupId;
+
+    private final CookieBasedProcessTreeKiller processTreeKiller;
+
+    private ProcessGroupKiller(long processGroupId, CookieBasedProcessTreeKiller processTreeKiller) {
+        this.processGroupId = processGroupId;
+        this.processTreeKiller = processTreeKiller;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLE_PROCESS_GROUP_KILL_PROPERTY_NAME) && SETSID != null && KILL != null;
+    }
+
+    /**
+     * Makes the process of the builder start as a process group leader if enabled.
+     *
+     * @return whether it will be a process group leader
+     */
+    public static boolean startAsProcessGroupLeader(ProcessBuilder processBuilder) {
+        if (!isEnabled()) {
+            return false;
+        }
+        // the started process is not a group leader, so setsid does not need to fork
+        processBuilder.command().add(0, SETSID);
+        return true;
+    }
+
+    /**
+     * @param processGroupLeader whether the process was started as a process group leader
+     * @param processTreeKiller optional
+     */
+    public static ProcessGroupKiller create(Process process, boolean processGroupLeader,
+            CookieBasedProcessTreeKiller processTreeKiller) {
+        return new ProcessGroupKiller(processGroupLeader ? getPid(process) : -1, processTreeKiller);
+    }
+
+    public void kill() {
+        if (processGroupId <= 0 || killProcessGroup()) {
+            if (processTreeKiller != null) {
+                processTreeKiller.kill();
+            }
+        }
+    }
+
+    /**
+     * @return whether the group had members or could not be signalled
+     */
+    private boolean killProcessGroup() {
+        if (!hasMembers()) {
+            return false;
+        }
+        try {
+            final ProcessBuilder kill = new ProcessBuilder(KILL, "-KILL", "--", "-" + processGroupId);
+            kill.redirectErrorStream(true).redirectOutput(new File("/dev/null"));
+            Process process = ProcessAdmission.start(new ProcessAdmission.ProcessStarter() {
+                @Override
+                public Process start() throws IOException {
+                    return kill.start();
+                }
+            });
+            try {
+                // kill fails when no process is in the group
+                return process.waitFor() == 0;
+            } finally {
+                ProcessAdmission.release();
+            }
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return whether a process still is in the group, true when the processes cannot be listed
+     */
+    private boolean hasMembers() {
+        String[] pids = PROC.list();
+        if (pids == null) {
+            return true;
+        }
+        String processGroup = String.valueOf(processGroupId);
+        for (String pid : pids) {
+            if (pid.isEmpty() || !Character.isDigit(pid.charAt(0))) {
+                continue;
+            }
+            try {
+                String stat = new String(Files.readAllBytes(Paths.get("/proc", pid, "stat")), StandardCharsets.UTF_8);
+                // pid (command) state ppid pgrp ..., the command might contain spaces and parentheses
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ", 4);
+                if (fields.length > 2 && fields[2].equals(processGroup)) {
+                    return true;
+                }
+            } catch (IOException | RuntimeException exited) {
+                // the process exited while listing
+            }
+        }
+        return false;
+    }
+
+    private static long getPid(Process process) {
+        try {
+            // Java 9 and later
+            Method pid = Process.class.getMethod("pid");
+            return (Long) pid.invoke(process);
+        } catch (NoSuchMethodException e) {
+            try {
+                Field pid = process.getClass().getDeclaredField("pid");
+                pid.setAccessible(true);
+                return pid.getInt(process);
+            } catch (Exception notAUnixProcess) {
+                return -1;
+            }
+        } catch (Exception unsupported) {
+            return -1;
+        }
+    }
+
+    private static String findExecutable(String name) {
+        for (String directory : new String[] { "/usr/bin", "/bin" }) {
+            File executable = new File(directory, name);
+            if (executable.canExecute()) {
+                return executable.getPath();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The live processes started by the engines, whose trees are torn down by a single shutdown hook when the JVM
+ * exits. Registering and unregistering do not lock, unlike adding and removing a shutdown hook per process.
+ */
+public final class ProcessRegistry {
+
+    private static final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+
+    private static volatile boolean shuttingDown;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("jsr223-nativeshell-shutdown") {
+            @Override
+            public void run() {
+                shuttingDown = true;
+                tearDownAll();
+            }
+        });
+    }
+
+    private ProcessRegistry() {
+    }
+
+    /**
+     * Registers the process until it is unregistered.
+     */
+    public static Registration register(Process process, ProcessGroupKiller processGroupKiller) {
+        Registration registration = new Registration(process, processGroupKiller);
+        registrations.add(registration);
+        if (shuttingDown && registrations.remove(registration)) {
+            // the shutdown hook might have missed it
+            registration.tearDown();
+        }
+        return registration;
+    }
+
+    private static void tearDownAll() {
+        List<Thread> tearDowns = new ArrayList<>();
+        for (final Registration registration : registrations) {
+            if (registrations.remove(registration)) {
+                // destroying does not wait, all the processes are signalled before any tree is killed
+                registration.process.destroy();
+                Thread tearDown = new Thread("jsr223-nativeshell-shutdown-" + tearDowns.size()) {
+                    @Override
+                    public void run() {
+                        registration.tearDown();
+                    }
+                };
+                tearDown.start();
+                tearDowns.add(tearDown);
+            }
+        }
+        for (Thread tearDown : tearDowns) {
+            try {
+                tearDown.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public static final class Registration {
+
+        private final Process process;
+
+        private final ProcessGroupKiller processGroupKiller;
+
+        private Registration(Process process, ProcessGroupKiller processGroupKiller) {
+            this.process = process;
+            this.processGroupKiller = processGroupKiller;
+        }
+
+        /**
+         * The process ended, it is left to the caller.
+         */
+        public void unregister() {
+            registrations.remove(this);
+        }
+
+        private void tearDown() {
+            try {
+                ProcessWatchdog.destroy(process);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                processGroupKiller.kill();
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import jsr223.nativeshell.ScriptTimeoutException.Reason;
+
+
+/**
+ * Kills a script that runs longer than its timeout or that does not write any output for longer than its idle
+ * timeout. The process is first asked to terminate, it is killed forcibly with the rest of its tree if the script
+ * did not end after the grace period.
+ * <p>
+ * The timeouts and the grace period are in seconds, read from the bindings or else from the generic information:
+ * {@value #TIMEOUT_NAME}, {@value #IDLE_TIMEOUT_NAME} and {@value #KILL_GRACE_PERIOD_NAME}. There is no timeout
+ * by default. The idle timeout only watches the pumped output, it is ignored when no output is pumped.
+ */
+public final class ProcessWatchdog {
+
+    public static final String TIMEOUT_NAME = "NATIVE_SHELL_TIMEOUT";
+
+    public static final String IDLE_TIMEOUT_NAME = "NATIVE_SHELL_IDLE_TIMEOUT";
+
+    public static final String KILL_GRACE_PERIOD_NAME = "NATIVE_SHELL_KILL_GRACE_PERIOD";
+
+    private static final long DEFAULT_KILL_GRACE_PERIOD_MILLIS = 5000;
+
+    private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+    private static final ExecutorService killers = createKillers();
+
+    private final long timeoutMillis;
+
+    private final long idleTimeoutMillis;
+
+    private final long killGracePeriodMillis;
+
+    private Process process;
+
+    private ProcessGroupKiller processGroupKiller;
+
+    private StreamPumps.OutputPump output;
+
+    private StreamPumps.OutputPump error;
+
+    private ScheduledFuture<?> deadline;
+
+    private ScheduledFuture<?> idleCheck;
+
+    private ScheduledFuture<?> forcibleKill;
+
+    private volatile Reason timeoutReason;
+
+    private boolean finished;
+
+    private ProcessWatchdog(long timeoutMillis, long idleTimeoutMillis, long killGracePeriodMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.killGracePeriodMillis = killGracePeriodMillis;
+    }
+
+    public static ProcessWatchdog create(ScriptContext scriptContext) throws ScriptException {
+        return new ProcessWatchdog(getMillis(scriptContext, TIMEOUT_NAME, 0),
+                                   getMillis(scriptContext, IDLE_TIMEOUT_NAME, 0),
+                                   getMillis(scriptContext, KILL_GRACE_PERIOD_NAME, DEFAULT_KILL_GRACE_PERIOD_MILLIS));
+    }
+
+    public static ProcessWatchdog withoutTimeouts() {
+        return new ProcessWatchdog(0, 0, DEFAULT_KILL_GRACE_PERIOD_MILLIS);
+    }
+
+    /**
+     * Starts watching the process, its output is watched through its pumps.
+     */
+    public synchronized void start(Process process, ProcessGroupKiller processGroupKiller,
+            StreamPumps.OutputPump output, StreamPumps.OutputPump error) {
+        this.process = process;
+        this.processGroupKiller = processGroupKiller;
+        this.output = output;
+        this.error = error;
+        if (timeoutMillis > 0) {
+            deadline = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    terminate(Reason.DEADLINE);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        // the output of a process writing directly to files cannot be watched, it is not idle
+        if (idleTimeoutMillis > 0 && (output.isPumped() || error.isPumped())) {
+            scheduleIdleCheck(idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * Stops watching, the script ended and its output was pumped.
+     */
+    public synchronized void finished() {
+        finished = true;
+        for (ScheduledFuture<?> scheduled : new ScheduledFuture<?>[] { deadline, idleCheck, forcibleKill }) {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @throws ScriptTimeoutException if the script was killed by the watchdog
+     */
+    public void check(int exitValue) throws ScriptTimeoutException {
+        Reason reason = timeoutReason;
+        if (reason != null) {
+            throw new ScriptTimeoutException(reason,
+                                             reason == Reason.DEADLINE ? timeoutMillis : idleTimeoutMillis,
+                                             exitValue);
+        }
+    }
+
+    /**
+     * Returns a future completed like the given one, or with a {@link ScriptTimeoutException} if the script was
+     * killed by the watchdog. Cancelling it cancels the given one.
+     */
+    public CompletableFuture<Integer> guard(final CompletableFuture<Integer> exitValue) {
+        final CompletableFuture<Integer> guarded = new CompletableFuture<>();
+        exitValue.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer value, Throwable throwable) {
+                finished();
+                if (throwable != null) {
+                    guarded.completeExceptionally(throwable);
+                    return;
+                }
+                try {
+                    check(value);
+                    guarded.complete(value);
+                } catch (ScriptTimeoutException e) {
+                    guarded.completeExceptionally(e);
+                }
+            }
+        });
+        guarded.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer value, Throwable throwable) {
+                if (guarded.isCancelled()) {
+                    exitValue.cancel(true);
+                }
+            }
+        });
+        return guarded;
+    }
+
+    /**
+     * Asks the process to terminate and kills it forcibly if it is still alive after the default grace period.
+     * Waits for it at most twice the grace period.
+     */
+    public static void destroy(Process process) throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(DEFAULT_KILL_GRACE_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            process.waitFor(DEFAULT_KILL_GRACE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void scheduleIdleCheck(long delayMillis) {
+        if (finished) {
+            return;
+        }
+        idleCheck = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long lastOutputNanos = Math.max(output.getLastOutputNanos(), error.getLastOutputNanos());
+                long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastOutputNanos);
+                if (idleMillis >= idleTimeoutMillis) {
+                    terminate(Reason.IDLE_OUTPUT);
+                } else {
+                    scheduleIdleCheck(idleTimeoutMillis - idleMillis);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void terminate(Reason reason) {
+        if (finished || timeoutReason != null) {
+            return;
+        }
+        timeoutReason = reason;
+        process.destroy();
+        forcibleKill = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                killForcibly();
+            }
+        }, killGracePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void killForcibly() {
+        final ProcessGroupKiller killer;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            process.destroyForcibly();
+            killer = processGroupKiller;
+        }
+        // descendants holding the output open would keep the script from ending
+        if (killer != null) {
+            // killing a tree runs commands, the timer thread is shared by all the scripts
+            killers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    killer.kill();
+                }
+            });
+        }
+    }
+
+    private static long getMillis(ScriptContext scriptContext, String name, long defaultMillis)
+            throws ScriptException {
+        String value = ScriptOptions.get(scriptContext, name);
+        if (value == null) {
+            return defaultMillis;
+        }
+        try {
+            return (long) (Double.parseDouble(value) * 1000);
+        } catch (NumberFormatException e) {
+            throw new ScriptException("Invalid " + name + ", a number of seconds is expected: " + value);
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jsr223-nativeshell-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // most deadlines are cancelled, they should not pile up in the queue
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private static ExecutorService createKillers() {
+        return new ThreadPoolExecutor(0,
+                                      Integer.MAX_VALUE,
+                                      60,
+                                      TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(),
+                                      new ThreadFactory() {
+                                          private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                                          @Override
+                                          public Thread newThread(Runnable runnable) {
+                                              Thread thread = new Thread(runnable,
+                                                                         "jsr223-nativeshell-killer-" +
+                                                                                   threadNumber.getAndIncrement());
+                                              thread.setDaemon(true);
+                                              return thread;
+                                          }
+                                      });
+    }
+}
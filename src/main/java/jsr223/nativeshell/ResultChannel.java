@@ -0,0 +1,222 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+
+
+/**
+ * Lets a script set variables without going through its output. With {@value #RESULTS_NAME} set to true in the
+ * bindings or in the generic information, the script appends lines to the file named by the environment variable
+ * {@value #RESULT_FILE_NAME}:
+ * <pre>
+ * NAME=VALUE
+ * </pre>
+ * and each one is put in the variables map of the script context. In the value, {@code \n} stands for a new line and
+ * {@code \\} for a backslash. Lines without {@code =} are ignored.
+ * <p>
+ * The file is read once the script ended, before the evaluation completes. When the variables map is a
+ * {@link ConcurrentMap}, it is also read every {@value #POLL_INTERVAL_MILLIS} milliseconds while the script runs,
+ * from a thread of its own. Java cannot give an additional pipe to a process.
+ */
+public final class ResultChannel {
+
+    public static final String RESULTS_NAME = "NATIVE_SHELL_RESULTS";
+
+    public static final String RESULT_FILE_NAME = "NATIVE_SHELL_RESULT_FILE";
+
+    static final long POLL_INTERVAL_MILLIS = 100;
+
+    private static final ScheduledThreadPoolExecutor poller = createPoller();
+
+    private final File file;
+
+    private final Map<String, Serializable> variables;
+
+    private final ByteArrayOutputStream pendingLine = new ByteArrayOutputStream();
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    private FileChannel channel;
+
+    private long position;
+
+    private ScheduledFuture<?> polling;
+
+    private ResultChannel(File file, Map<String, Serializable> variables) {
+        this.file = file;
+        this.variables = variables;
+    }
+
+    /**
+     * Creates the result file of a script, or returns null when it did not ask for one or its context has no
+     * variables map.
+     */
+    public static ResultChannel create(ScriptContext scriptContext, Map<String, String> environment)
+            throws IOException {
+        if (!Boolean.parseBoolean(ScriptOptions.get(scriptContext, RESULTS_NAME))) {
+            return null;
+        }
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        Map<String, Serializable> variablesMap = bindings != null ? NativeShellScriptEngine.getVariables(bindings)
+                                                                  : null;
+        if (variablesMap == null) {
+            return null;
+        }
+        // the values returned by a script are as sensitive as its bindings
+        File file = ScriptFileCache.createPrivateFile("jsr223nativeshell-result-");
+        environment.put(RESULT_FILE_NAME, file.getAbsolutePath());
+        return new ResultChannel(file, variablesMap);
+    }
+
+    /**
+     * Starts applying the lines written by the script while it runs, if the variables map can be updated from
+     * another thread.
+     */
+    public synchronized void start() {
+        if (!(variables instanceof ConcurrentMap)) {
+            return;
+        }
+        polling = poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the lines not read yet, including a last line without a new line, and deletes the file.
+     */
+    public synchronized void close() {
+        if (polling != null) {
+            polling.cancel(false);
+        }
+        poll();
+        if (pendingLine.size() > 0) {
+            apply(pendingLine.toByteArray(), pendingLine.size());
+            pendingLine.reset();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            file.delete();
+        }
+    }
+
+    private synchronized void poll() {
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            while (channel.size() > position) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                position += read;
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        apply(pendingLine.toByteArray(), pendingLine.size());
+                        pendingLine.reset();
+                    } else {
+                        pendingLine.write(b);
+                    }
+                }
+            }
+        } catch (IOException ignored) {
+            // the script removed the file, it only loses the updates it did not write yet
+        }
+    }
+
+    private void apply(byte[] line, int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        String update = new String(line, 0, length, StreamPumps.getCharset());
+        int separator = update.indexOf('=');
+        if (separator <= 0) {
+            return;
+        }
+        variables.put(update.substring(0, separator), unescape(update.substring(separator + 1)));
+    }
+
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                if (next == 'n') {
+                    unescaped.append('\n');
+                } else if (next == '\\') {
+                    unescaped.append('\\');
+                } else {
+                    unescaped.append(c).append(next);
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private static ScheduledThreadPoolExecutor createPoller() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jsr223-nativeshell-results");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Script files shared by the evaluations of the same script, for the shells that read their script from a file.
+ * <p>
+ * A file is named after the hash of the script and the file extension of the shell, it is written once in a
+ * directory owned by this JVM and deleted once it is among the least recently used ones past
+ * {@value #MAX_FILES_PROPERTY_NAME} files or {@value #MAX_BYTES_PROPERTY_NAME} bytes. Files in use are never deleted.
+ * <p>
+ * The directory is created in {@value #DIRECTORY_PROPERTY_NAME}, which defaults to /dev/shm when it is mounted
+ * without noexec and to the temporary directory otherwise. Like any temporary directory it is only accessible by
+ * its owner. It is locked while the JVM is alive so that the directories left over by crashed JVMs can be told apart
+ * and swept, the other temporary files of the engines are kept in it for the same reason.
+ */
+public final class ScriptFileCache {
+
+    public static final String DIRECTORY_PROPERTY_NAME = "jsr223.nativeshell.scriptCache.directory";
+
+    public static final String MAX_FILES_PROPERTY_NAME = "jsr223.nativeshell.scriptCache.maxFiles";
+
+    public static final String MAX_BYTES_PROPERTY_NAME = "jsr223.nativeshell.scriptCache.maxBytes";
+
+    private static final int DEFAULT_MAX_FILES = 256;
+
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final String FILE_PREFIX = "jsr223nativeshell-";
+
+    private static final String DIRECTORY_PREFIX = FILE_PREFIX + "cache-";
+
+    private static final String LOCK_FILE_NAME = "lock";
+
+    // a directory without a lock file might have just been created by a JVM that did not lock it yet
+    private static final long UNLOCKED_DIRECTORY_MIN_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String SHARED_MEMORY_DIRECTORY = "/dev/shm";
+
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+    private static final Map<String, ScriptFile> scriptFiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final AtomicBoolean orphansSwept = new AtomicBoolean();
+
+    private static long totalBytes;
+
+    private static File directory;
+
+    private static FileLock directoryLock;
+
+    private ScriptFileCache() {
+    }
+
+    /**
+     * Returns the file of the script, it must be released once the script ended.
+     */
+    public static ScriptFile acquire(String script, String fileExtension) throws IOException {
+        // we add new line to the command because it is mandatory for Rexx scripts
+        byte[] content = (script + System.lineSeparator()).getBytes();
+        String fileName = FILE_PREFIX + hash(content) + fileExtension;
+        ScriptFile scriptFile;
+        synchronized (ScriptFileCache.class) {
+            scriptFile = scriptFiles.get(fileName);
+            if (scriptFile == null) {
+                scriptFile = new ScriptFile(new File(getDirectory(), fileName), content.length);
+                scriptFiles.put(fileName, scriptFile);
+                totalBytes += content.length;
+            }
+            scriptFile.users++;
+            evictLeastRecentlyUsed();
+        }
+        try {
+            scriptFile.write(content);
+        } catch (IOException | RuntimeException e) {
+            scriptFile.release();
+            throw e;
+        }
+        return scriptFile;
+    }
+
+    /**
+     * Creates an empty file that only the owner of the JVM can read, in the directory of this JVM. It is deleted
+     * with the directory when the JVM exits, if it was not deleted before.
+     */
+    public static File createPrivateFile(String prefix) throws IOException {
+        File privateDirectory;
+        synchronized (ScriptFileCache.class) {
+            privateDirectory = getDirectory();
+        }
+        return createOwnerOnlyFile(privateDirectory, prefix);
+    }
+
+    /**
+     * Creates an empty file that only the owner of the JVM can read, where the file system has POSIX permissions.
+     */
+    static File createOwnerOnlyFile(File directory, String prefix) throws IOException {
+        if (directory.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return Files.createTempFile(directory.toPath(), prefix, "", OWNER_ONLY).toFile();
+        }
+        return Files.createTempFile(directory.toPath(), prefix, "").toFile();
+    }
+
+    /**
+     * Deletes in the background the cache directories left over by crashed JVMs, only the first call does it.
+     * Directories locked by a live JVM are kept, whatever their age.
+     */
+    public static void sweepOrphansOnce() {
+        if (!orphansSwept.compareAndSet(false, true)) {
+            return;
+        }
+        Thread sweeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Set<File> baseDirectories = new LinkedHashSet<>();
+                baseDirectories.add(getBaseDirectory().getAbsoluteFile());
+                baseDirectories.add(new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile());
+                for (File baseDirectory : baseDirectories) {
+                    sweepOrphans(baseDirectory);
+                }
+            }
+        }, "jsr223-nativeshell-orphan-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    static void sweepOrphans(File baseDirectory) {
+        File[] candidates = baseDirectory.listFiles();
+        if (candidates == null) {
+            return;
+        }
+        File ownDirectory;
+        synchronized (ScriptFileCache.class) {
+            ownDirectory = directory;
+        }
+        long orphanDate = System.currentTimeMillis() - UNLOCKED_DIRECTORY_MIN_AGE_MILLIS;
+        for (File candidate : candidates) {
+            if (candidate.isDirectory() && candidate.getName().startsWith(DIRECTORY_PREFIX) &&
+                !candidate.equals(ownDirectory)) {
+                sweepOrphanDirectory(candidate, orphanDate);
+            }
+        }
+    }
+
+    private static void sweepOrphanDirectory(File orphan, long orphanDate) {
+        File lockFile = new File(orphan, LOCK_FILE_NAME);
+        if (!lockFile.exists()) {
+            if (orphan.lastModified() < orphanDate) {
+                deleteDirectory(orphan);
+            }
+            return;
+        }
+        try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.tryLock();
+            if (lock == null) {
+                // the JVM owning the directory is alive
+                return;
+            }
+            deleteDirectory(orphan);
+        } catch (IOException | OverlappingFileLockException ignored) {
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static File getDirectory() throws IOException {
+        if (directory == null || !directory.isDirectory()) {
+            File newDirectory = Files.createTempDirectory(getBaseDirectory().toPath(), DIRECTORY_PREFIX).toFile();
+            FileChannel lockChannel = FileChannel.open(new File(newDirectory, LOCK_FILE_NAME).toPath(),
+                                                       StandardOpenOption.CREATE,
+                                                       StandardOpenOption.WRITE);
+            directoryLock = lockChannel.lock();
+            if (directory == null) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        synchronized (ScriptFileCache.class) {
+                            deleteDirectory(directory);
+                        }
+                    }
+                });
+            } else {
+                // the directory was deleted behind our back, the files it had are gone
+                directoryLock.channel().close();
+                scriptFiles.clear();
+                totalBytes = 0;
+            }
+            directory = newDirectory;
+        }
+        return directory;
+    }
+
+    static File getBaseDirectory() {
+        String configuredDirectory = System.getProperty(DIRECTORY_PROPERTY_NAME);
+        if (configuredDirectory != null) {
+            return new File(configuredDirectory);
+        }
+        if (isExecutableSharedMemory()) {
+            return new File(SHARED_MEMORY_DIRECTORY);
+        }
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    private static boolean isExecutableSharedMemory() {
+        File sharedMemory = new File(SHARED_MEMORY_DIRECTORY);
+        if (!sharedMemory.isDirectory() || !sharedMemory.canWrite()) {
+            return false;
+        }
+        try {
+            // the Shell engine executes its script files
+            List<String> mounts = Files.readAllLines(Paths.get("/proc/self/mounts"));
+            for (String mount : mounts) {
+                String[] fields = mount.split(" ");
+                if (fields.length > 3 && SHARED_MEMORY_DIRECTORY.equals(fields[1])) {
+                    return !(',' + fields[3] + ',').contains(",noexec,");
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void evictLeastRecentlyUsed() {
+        int maxFiles = Integer.getInteger(MAX_FILES_PROPERTY_NAME, DEFAULT_MAX_FILES);
+        long maxBytes = Long.getLong(MAX_BYTES_PROPERTY_NAME, DEFAULT_MAX_BYTES);
+        Iterator<ScriptFile> leastRecentlyUsed = scriptFiles.values().iterator();
+        while ((scriptFiles.size() > maxFiles || totalBytes > maxBytes) && leastRecentlyUsed.hasNext()) {
+            ScriptFile scriptFile = leastRecentlyUsed.next();
+            if (scriptFile.users == 0) {
+                leastRecentlyUsed.remove();
+                totalBytes -= scriptFile.size;
+                scriptFile.file.delete();
+            }
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest) {
+                hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static final class ScriptFile {
+
+        private final File file;
+
+        private final long size;
+
+        // guarded by the ScriptFileCache class
+        private int users;
+
+        private boolean written;
+
+        private ScriptFile(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Lets the file be deleted, the script that used it ended.
+         */
+        public void release() {
+            synchronized (ScriptFileCache.class) {
+                users--;
+                evictLeastRecentlyUsed();
+            }
+        }
+
+        private synchronized void write(byte[] content) throws IOException {
+            if (!written) {
+                Files.write(file.toPath(), content);
+                file.setExecutable(true);
+                written = true;
+            }
+        }
+    }
+}
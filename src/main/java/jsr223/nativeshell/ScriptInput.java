@@ -0,0 +1,288 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+
+/**
+ * The standard input of a script, fed the cheapest way it can be:
+ * <ul>
+ * <li>{@link #none()}: closed as soon as the process started, without a pump</li>
+ * <li>{@link #fromFile(File)}: read by the process from the file, the kernel redirects it</li>
+ * <li>{@link #fromBytes(ByteBuffer)}: written at once by a pump</li>
+ * <li>{@link #fromRecords(Iterator)}: written one record at a time by a pump, the next record is only taken once the
+ * process read enough of the previous ones to make room in the pipe</li>
+ * <li>{@link #fromReader(Reader)}: copied by a pump until the reader ends, what the engines did before</li>
+ * </ul>
+ * The engines read it from the binding {@value #INPUT_NAME}, a {@code ScriptInput}, a byte array, a
+ * {@link ByteBuffer}, a {@link File}, an {@link Iterator} or an {@link Iterable}, or else from the option
+ * {@value #INPUT_NAME}, {@code none} or {@code file:<path>}. By default the reader of the script context is copied.
+ */
+public abstract class ScriptInput {
+
+    public static final String INPUT_NAME = "NATIVE_SHELL_INPUT";
+
+    private static final String FILE_PREFIX = "file:";
+
+    private static final StreamPumps.InputWriter NOTHING = new StreamPumps.InputWriter() {
+        @Override
+        public void writeTo(OutputStream processInput) {
+        }
+    };
+
+    private static final ScriptInput NONE = new ScriptInput() {
+        @Override
+        public Future<?> pump(Process process, OutputStream processInput) {
+            try {
+                processInput.close();
+            } catch (IOException ignored) {
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        boolean mayBlock() {
+            return false;
+        }
+
+        @Override
+        StreamPumps.InputWriter writer(Process process) {
+            return NOTHING;
+        }
+    };
+
+    ScriptInput() {
+    }
+
+    public static ScriptInput none() {
+        return NONE;
+    }
+
+    public static ScriptInput fromFile(final File file) {
+        return new ScriptInput() {
+            @Override
+            public boolean redirect(ProcessBuilder processBuilder) {
+                processBuilder.redirectInput(Redirect.from(file));
+                return true;
+            }
+
+            @Override
+            StreamPumps.InputWriter writer(Process process) {
+                // the input is a pipe when the process also reads its script from it
+                return new StreamPumps.InputWriter() {
+                    @Override
+                    public void writeTo(OutputStream processInput) throws IOException {
+                        try (InputStream fileInput = new FileInputStream(file)) {
+                            byte[] buffer = BufferPool.acquireBytes();
+                            try {
+                                int n;
+                                while ((n = fileInput.read(buffer)) != -1) {
+                                    processInput.write(buffer, 0, n);
+                                }
+                            } finally {
+                                BufferPool.release(buffer);
+                            }
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    public static ScriptInput fromBytes(byte[] bytes) {
+        return fromBytes(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * The remaining bytes of the buffer are written, the buffer itself is left untouched.
+     */
+    public static ScriptInput fromBytes(ByteBuffer bytes) {
+        final ByteBuffer input = bytes.duplicate();
+        return new ScriptInput() {
+            @Override
+            public Future<?> pump(Process process, OutputStream processInput) {
+                if (!input.hasRemaining()) {
+                    return NONE.pump(process, processInput);
+                }
+                return super.pump(process, processInput);
+            }
+
+            @Override
+            boolean mayBlock() {
+                return false;
+            }
+
+            @Override
+            StreamPumps.InputWriter writer(Process process) {
+                return new StreamPumps.InputWriter() {
+                    @Override
+                    public void writeTo(OutputStream processInput) throws IOException {
+                        if (input.hasArray()) {
+                            processInput.write(input.array(),
+                                               input.arrayOffset() + input.position(),
+                                               input.remaining());
+                        } else {
+                            WritableByteChannel channel = Channels.newChannel(processInput);
+                            ByteBuffer remaining = input.duplicate();
+                            while (remaining.hasRemaining()) {
+                                channel.write(remaining);
+                            }
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Byte array records are written as they are, the other records as a line of their string value. The records
+     * are taken lazily, a write to a full pipe holds the next one back.
+     */
+    public static ScriptInput fromRecords(final Iterator<?> records) {
+        return new ScriptInput() {
+            @Override
+            StreamPumps.InputWriter writer(final Process process) {
+                return new StreamPumps.InputWriter() {
+                    @Override
+                    public void writeTo(OutputStream processInput) throws IOException {
+                        while (process.isAlive() && records.hasNext()) {
+                            Object record = records.next();
+                            if (record instanceof byte[]) {
+                                processInput.write((byte[]) record);
+                            } else {
+                                processInput.write((record + "\n").getBytes(StreamPumps.getCharset()));
+                            }
+                            processInput.flush();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    public static ScriptInput fromReader(final Reader reader) {
+        if (reader == null) {
+            return NONE;
+        }
+        return new ScriptInput() {
+            @Override
+            public Future<?> pump(Process process, OutputStream processInput) {
+                return StreamPumps.pumpInput(process, reader, processInput);
+            }
+
+            @Override
+            StreamPumps.InputWriter writer(Process process) {
+                return StreamPumps.copyReader(process, reader);
+            }
+        };
+    }
+
+    public static ScriptInput create(ScriptContext scriptContext) throws ScriptException {
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        Object input = bindings != null ? bindings.get(INPUT_NAME) : null;
+        if (input instanceof ScriptInput) {
+            return (ScriptInput) input;
+        } else if (input instanceof byte[]) {
+            return fromBytes((byte[]) input);
+        } else if (input instanceof ByteBuffer) {
+            return fromBytes((ByteBuffer) input);
+        } else if (input instanceof File) {
+            return fromFile((File) input);
+        } else if (input instanceof Iterator) {
+            return fromRecords((Iterator<?>) input);
+        } else if (input instanceof Iterable) {
+            return fromRecords(((Iterable<?>) input).iterator());
+        }
+        String option = ScriptOptions.get(scriptContext, INPUT_NAME);
+        if (option == null) {
+            return fromReader(scriptContext.getReader());
+        } else if (option.toLowerCase(Locale.ROOT).equals("none")) {
+            return NONE;
+        } else if (option.toLowerCase(Locale.ROOT).startsWith(FILE_PREFIX) && option.length() > FILE_PREFIX.length()) {
+            return fromFile(new File(option.substring(FILE_PREFIX.length())));
+        }
+        throw new ScriptException("Invalid " + INPUT_NAME + ", none or file:<path> is expected: " + option);
+    }
+
+    /**
+     * Lets the kernel feed the process before it starts, if this input can.
+     *
+     * @return true if the input of the process was redirected, it then needs no {@link #pump}
+     */
+    public boolean redirect(ProcessBuilder processBuilder) {
+        return false;
+    }
+
+    /**
+     * Feeds the started process. Cancelling the returned future stops feeding it, the process input is closed once
+     * the future completes.
+     */
+    public Future<?> pump(Process process, OutputStream processInput) {
+        return StreamPumps.pumpInput(processInput, mayBlock(), writer(process));
+    }
+
+    /**
+     * Feeds the started process with the given bytes first, then with this input, from the same pump.
+     */
+    Future<?> pumpAfter(final byte[] firstBytes, Process process, OutputStream processInput) {
+        final StreamPumps.InputWriter writer = writer(process);
+        return StreamPumps.pumpInput(processInput, mayBlock(), new StreamPumps.InputWriter() {
+            @Override
+            public void writeTo(OutputStream processInput) throws IOException {
+                processInput.write(firstBytes);
+                processInput.flush();
+                writer.writeTo(processInput);
+            }
+        });
+    }
+
+    /**
+     * @return true if the source of this input might block forever
+     */
+    boolean mayBlock() {
+        return true;
+    }
+
+    abstract StreamPumps.InputWriter writer(Process process);
+}
@@ -0,0 +1,72 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.Map;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import org.ow2.proactive.scheduler.common.SchedulerConstants;
+
+
+/**
+ * Reads the options of an evaluation, from the bindings or else from the generic information.
+ */
+public final class ScriptOptions {
+
+    private ScriptOptions() {
+    }
+
+    /**
+     * @return the trimmed value of the option, null if it is not set or empty
+     */
+    public static String get(ScriptContext scriptContext, String name) {
+        Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        Object value = bindings != null ? bindings.get(name) : null;
+        if (value == null && bindings != null) {
+            Object genericInfo = bindings.get(SchedulerConstants.GENERIC_INFO_BINDING_NAME);
+            value = genericInfo instanceof Map ? ((Map<?, ?>) genericInfo).get(name) : null;
+        }
+        if (value == null || value.toString().trim().isEmpty()) {
+            return null;
+        }
+        return value.toString().trim();
+    }
+
+    public static long getLong(ScriptContext scriptContext, String name, long defaultValue) throws ScriptException {
+        String value = get(scriptContext, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new ScriptException("Invalid " + name + ", a number is expected: " + value);
+        }
+    }
+}
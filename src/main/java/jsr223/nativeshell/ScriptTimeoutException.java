@@ -0,0 +1,71 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import javax.script.ScriptException;
+
+
+/**
+ * Thrown when a script was killed by its {@link ProcessWatchdog}.
+ */
+public class ScriptTimeoutException extends ScriptException {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        /**
+         * The script ran longer than its timeout.
+         */
+        DEADLINE,
+        /**
+         * The script did not write any output for longer than its idle timeout.
+         */
+        IDLE_OUTPUT
+    }
+
+    private final Reason reason;
+
+    private final int exitValue;
+
+    public ScriptTimeoutException(Reason reason, long timeoutMillis, int exitValue) {
+        super((reason == Reason.DEADLINE ? "Script timed out after " + timeoutMillis + " ms"
+                                         : "Script killed after " + timeoutMillis + " ms without output") +
+              ", exit code " + exitValue);
+        this.reason = reason;
+        this.exitValue = exitValue;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * The exit value of the killed script.
+     */
+    public int getExitValue() {
+        return exitValue;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+
+/**
+ * Moves the oversized environment variables and arguments of a process to files, so that starting it does not fail
+ * with E2BIG.
+ * <p>
+ * A value larger than {@value #THRESHOLD_PROPERTY_NAME} bytes is written to a file, and so are the largest values
+ * until the environment and the arguments fit in {@value #MAX_TOTAL_PROPERTY_NAME} bytes. A spilled variable NAME
+ * is replaced by NAME{@value #FILE_SUFFIX}, the path of its file, a spilled argument by the path of its file. The
+ * files are deleted with {@link #delete()} once the process ended.
+ */
+public final class SpillFiles {
+
+    public static final String THRESHOLD_PROPERTY_NAME = "jsr223.nativeshell.spill.threshold";
+
+    public static final String MAX_TOTAL_PROPERTY_NAME = "jsr223.nativeshell.spill.maxTotal";
+
+    public static final String FILE_SUFFIX = "_FILE";
+
+    // a single value cannot exceed 128KiB on Linux
+    private static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+    // the arguments and the environment share the 2MiB left by a default 8MiB stack
+    private static final int DEFAULT_MAX_TOTAL = 1024 * 1024;
+
+    private static final Pattern SHELL_VARIABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final SpillFiles NONE = new SpillFiles();
+
+    private final Map<String, File> variables = new LinkedHashMap<>();
+
+    private final Map<Integer, File> arguments = new LinkedHashMap<>();
+
+    private SpillFiles() {
+    }
+
+    /**
+     * Spills what does not fit, given what else the process is started with.
+     *
+     * @param environment the added environment variables, spilled ones are replaced
+     * @param arguments the arguments, spilled ones are replaced
+     * @param command the rest of the command line
+     */
+    public static SpillFiles spill(Map<String, String> environment, List<String> arguments, List<String> command)
+            throws IOException {
+        int threshold = Integer.getInteger(THRESHOLD_PROPERTY_NAME, DEFAULT_THRESHOLD);
+        long budget = Long.getLong(MAX_TOTAL_PROPERTY_NAME, DEFAULT_MAX_TOTAL) - BaseEnvironment.getSize();
+        for (String part : command) {
+            budget -= size(part);
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<String, String> variable : environment.entrySet()) {
+            Candidate candidate = new Candidate(variable.getKey(), -1, variable.getValue());
+            candidates.add(candidate);
+            total += candidate.size;
+        }
+        for (int i = 0; i < arguments.size(); i++) {
+            Candidate candidate = new Candidate(null, i, arguments.get(i));
+            candidates.add(candidate);
+            total += candidate.size;
+        }
+        if (total <= budget && !hasValueOver(candidates, threshold)) {
+            return NONE;
+        }
+
+        Collections.sort(candidates, LARGEST_FIRST);
+        SpillFiles spillFiles = new SpillFiles();
+        try {
+            for (Candidate candidate : candidates) {
+                if (candidate.size <= threshold && total <= budget) {
+                    break;
+                }
+                File file = write(candidate.value);
+                total -= candidate.size;
+                if (candidate.name != null) {
+                    spillFiles.variables.put(candidate.name, file);
+                    environment.remove(candidate.name);
+                    environment.put(candidate.name + FILE_SUFFIX, file.getAbsolutePath());
+                    total += size(candidate.name + FILE_SUFFIX) + size(file.getAbsolutePath());
+                } else {
+                    spillFiles.arguments.put(candidate.argumentIndex, file);
+                    arguments.set(candidate.argumentIndex, file.getAbsolutePath());
+                    total += size(file.getAbsolutePath());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            spillFiles.delete();
+            throw e;
+        }
+        return spillFiles;
+    }
+
+    /**
+     * Bash commands, on a single line, that restore the spilled values: variables as shell variables, which
+     * are not exported, and arguments as positional parameters.
+     */
+    public String bashPrelude() {
+        StringBuilder prelude = new StringBuilder();
+        for (Map.Entry<String, File> variable : variables.entrySet()) {
+            if (SHELL_VARIABLE_NAME.matcher(variable.getKey()).matches()) {
+                appendRead(prelude, variable.getKey(), variable.getValue());
+            }
+        }
+        for (Map.Entry<Integer, File> argument : arguments.entrySet()) {
+            int position = argument.getKey() + 1;
+            appendRead(prelude, "jsr223_nativeshell_argument", argument.getValue());
+            prelude.append("set -- \"${@:1:").append(position - 1).append("}\" \"$jsr223_nativeshell_argument\" \"${@:")
+                   .append(position + 1).append("}\"; ");
+        }
+        if (!arguments.isEmpty()) {
+            prelude.append("unset -v jsr223_nativeshell_argument; ");
+        }
+        return prelude.toString();
+    }
+
+    public void delete() {
+        for (File file : variables.values()) {
+            file.delete();
+        }
+        for (File file : arguments.values()) {
+            file.delete();
+        }
+    }
+
+    private static void appendRead(StringBuilder prelude, String name, File file) {
+        // read -d '' keeps the trailing new lines that a command substitution would remove
+        prelude.append("IFS= read -r -d '' ").append(name).append(" < '")
+               .append(file.getAbsolutePath().replace("'", "'\\''")).append("'; ");
+    }
+
+    private static boolean hasValueOver(List<Candidate> candidates, int threshold) {
+        for (Candidate candidate : candidates) {
+            if (candidate.size > threshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static File write(String value) throws IOException {
+        // the values are often credentials
+        File file = ScriptFileCache.createPrivateFile("jsr223nativeshell-spill-");
+        Files.write(file.toPath(), value.getBytes(StreamPumps.getCharset()));
+        return file;
+    }
+
+    /**
+     * The size of a string in an environment or argument block, its encoding is only computed for large strings.
+     */
+    static long size(String value) {
+        // pointer and terminating null byte
+        long overhead = 8 + 1;
+        return overhead + (value.length() < 1024 ? 3 * value.length() : value.getBytes().length);
+    }
+
+    private static final Comparator<Candidate> LARGEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate first, Candidate second) {
+            return Long.compare(second.size, first.size);
+        }
+    };
+
+    private static class Candidate {
+
+        private final String name;
+
+        private final int argumentIndex;
+
+        private final String value;
+
+        private final long size;
+
+        Candidate(String name, int argumentIndex, String value) {
+            this.name = name;
+            this.argumentIndex = argumentIndex;
+            this.value = value;
+            this.size = (name != null ? size(name + "=") - 9 : 0) + size(value);
+        }
+    }
+}
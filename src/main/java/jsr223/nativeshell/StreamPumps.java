@@ -0,0 +1,561 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.script.ScriptContext;
+
+
+/**
+ * Copies the standard streams of the native processes from and to the script context, using thread pools shared
+ * by all the engines instead of threads created for each process.
+ * <p>
+ * Output pumps only read what is available while the process is alive and reschedule themselves otherwise, so
+ * that a pool thread is never blocked by a silent process. Once the process exited, the rest of the output is
+ * read until the end of the stream. Input pumps of bytes already in memory only block while the process does not
+ * read them, they run on the input pool. A context reader is copied on the input pool while it is ready, and on the
+ * pool of blocking pumps once a read might block. Files and records, which might never end (a FIFO, a socket...), are
+ * always copied on the pool of blocking pumps, so that a blocked source never holds back the inputs of other scripts.
+ * Each pool has at most {@value #PUMP_THREADS_PROPERTY_NAME} threads, the pumps wait in a queue beyond.
+ * <p>
+ * The streams are encoded with the charset {@value #CHARSET_PROPERTY_NAME}, the default charset otherwise. The output
+ * is copied as bytes, with buffers from a {@link BufferPool}, and decoded only when the writer is not a
+ * {@link ByteWriter}.
+ * <p>
+ * With {@value #MERGE_OUTPUT_NAME} set to true in the bindings or in the generic information, the error output of
+ * the process is merged into its output, in the order it was written, and copied by a single pump.
+ */
+public final class StreamPumps {
+
+    public static final String PUMP_THREADS_PROPERTY_NAME = "jsr223.nativeshell.pumpThreads";
+
+    public static final String CHARSET_PROPERTY_NAME = "jsr223.nativeshell.charset";
+
+    public static final String MERGE_OUTPUT_NAME = "NATIVE_SHELL_MERGE_OUTPUT";
+
+    private static final long MIN_POLL_DELAY_MILLIS = 1;
+
+    private static final long MAX_POLL_DELAY_MILLIS = 64;
+
+    private static final int POOL_SIZE = Integer.getInteger(PUMP_THREADS_PROPERTY_NAME,
+                                                            Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final Charset charset = Charset.forName(System.getProperty(CHARSET_PROPERTY_NAME,
+                                                                              Charset.defaultCharset().name()));
+
+    private static final ScheduledExecutorService outputPumps = createOutputPumps();
+
+    private static final ExecutorService inputPumps = createInputPumps();
+
+    private static final ExecutorService blockingInputPumps = createBlockingInputPumps();
+
+    private StreamPumps() {
+    }
+
+    /**
+     * The charset of the process streams.
+     */
+    public static Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Redirects the error output of the process to its output if the script context asks for it.
+     *
+     * @return true if the error output is redirected, it then needs no pump
+     */
+    public static boolean mergeOutput(ScriptContext scriptContext, ProcessBuilder processBuilder) {
+        if (Boolean.parseBoolean(ScriptOptions.get(scriptContext, MERGE_OUTPUT_NAME))) {
+            processBuilder.redirectErrorStream(true);
+        }
+        return processBuilder.redirectErrorStream();
+    }
+
+    /**
+     * A pump for an output merged into the other one or redirected, it is already complete.
+     */
+    public static OutputPump noOutput() {
+        return new OutputPump();
+    }
+
+    /**
+     * Copies the process output to the context writer until the end of the output, flushing it after each line.
+     */
+    public static OutputPump pumpOutput(Process process, InputStream processOutput, Writer contextWriter,
+            OutputCapture captureOutput) {
+        return pumpOutput(process, processOutput, contextWriter, captureOutput, FlushPolicy.line());
+    }
+
+    /**
+     * Copies the process output to the context writer until the end of the output.
+     */
+    public static OutputPump pumpOutput(Process process, InputStream processOutput, Writer contextWriter,
+            OutputCapture captureOutput, FlushPolicy flushPolicy) {
+        return pumpOutput(process, processOutput, contextWriter, captureOutput, flushPolicy, null);
+    }
+
+    /**
+     * Copies the process output to the context writer, and to the subscriber if not null, until the end of the
+     * output. The pump completes once the subscriber completed or cancelled.
+     */
+    public static OutputPump pumpOutput(Process process, InputStream processOutput, Writer contextWriter,
+            OutputCapture captureOutput, FlushPolicy flushPolicy, OutputSubscriber subscriber) {
+        OutputPump pump = new OutputPump(process,
+                                         processOutput,
+                                         contextWriter,
+                                         captureOutput,
+                                         flushPolicy,
+                                         subscriber != null ? new OutputPublisher(subscriber) : null);
+        outputPumps.execute(pump.task);
+        return pump;
+    }
+
+    /**
+     * Copies the context reader to the process input until the reader ends or the process exits.
+     */
+    public static Future<?> pumpInput(Process process, Reader contextReader, OutputStream processInput) {
+        ReaderPump pump = new ReaderPump(process, contextReader, processInput);
+        inputPumps.execute(pump.readyPart);
+        return pump.done;
+    }
+
+    static InputWriter copyReader(final Process process, final Reader contextReader) {
+        return new InputWriter() {
+            @Override
+            public void writeTo(OutputStream processInput) throws IOException {
+                try (Reader reader = contextReader) {
+                    OutputStreamWriter outputStreamWriter = new OutputStreamWriter(processInput, charset);
+                    char[] buff = new char[8192];
+                    int n;
+                    while (process.isAlive() && (n = reader.read(buff)) != -1) {
+                        outputStreamWriter.write(buff, 0, n);
+                        outputStreamWriter.flush();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes to the process input, the process input is closed once written or cancelled.
+     *
+     * @param blockingSource true if the writer reads from a source that might block forever, it then runs on the
+     *                       pool of blocking pumps
+     */
+    static Future<?> pumpInput(final OutputStream processInput, boolean blockingSource,
+            final InputWriter inputWriter) {
+        FutureTask<Void> pump = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inputWriter.writeTo(processInput);
+                } catch (Exception ignored) {
+                }
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                // a cancelled pump might never have run, the process input must be closed anyway
+                try {
+                    processInput.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+        (blockingSource ? blockingInputPumps : inputPumps).execute(pump);
+        return pump;
+    }
+
+    interface InputWriter {
+
+        void writeTo(OutputStream processInput) throws IOException;
+    }
+
+    /**
+     * Copies a context reader without holding a thread of the input pool while the reader has nothing ready. The
+     * pump completes when the reader ended or the process exited, cancelling it stops the copy before the next read.
+     */
+    private static final class ReaderPump {
+
+        private final Process process;
+
+        private final Reader reader;
+
+        private final Writer processInput;
+
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private final Runnable readyPart = new Runnable() {
+            @Override
+            public void run() {
+                copy(false);
+            }
+        };
+
+        private final Runnable blockingPart = new Runnable() {
+            @Override
+            public void run() {
+                copy(true);
+            }
+        };
+
+        ReaderPump(Process process, Reader reader, final OutputStream processInput) {
+            this.process = process;
+            this.reader = reader;
+            this.processInput = new OutputStreamWriter(processInput, charset);
+            done.whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void ignored, Throwable throwable) {
+                    // a cancelled pump might still be blocked in a read, the process input is closed anyway
+                    try {
+                        processInput.close();
+                    } catch (IOException ignoredException) {
+                    }
+                }
+            });
+        }
+
+        private void copy(boolean mayBlock) {
+            char[] buffer = BufferPool.acquireChars();
+            try {
+                while (!done.isDone() && process.isAlive()) {
+                    if (!mayBlock && !reader.ready()) {
+                        blockingInputPumps.execute(blockingPart);
+                        return;
+                    }
+                    int n = reader.read(buffer);
+                    if (n == -1) {
+                        break;
+                    }
+                    processInput.write(buffer, 0, n);
+                    processInput.flush();
+                    if (mayBlock) {
+                        // the reader delivered again, give the blocking thread back
+                        inputPumps.execute(readyPart);
+                        return;
+                    }
+                }
+            } catch (Exception ignored) {
+            } finally {
+                BufferPool.release(buffer);
+            }
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+            done.complete(null);
+        }
+    }
+
+    /**
+     * Returns a future completed with the exit value of the process once it exited and its output was pumped.
+     * Cancelling it destroys the process, the input pump is cancelled whatever the outcome.
+     */
+    public static CompletableFuture<Integer> whenDone(final Process process, final Future<?> input,
+            final OutputPump output, final OutputPump error) {
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+        ExitWatcher exitWatcher = new ExitWatcher(process);
+        exitWatcher.exited.thenAccept(new Consumer<Integer>() {
+            @Override
+            public void accept(final Integer exitValue) {
+                output.processExited();
+                error.processExited();
+                CompletableFuture.allOf(output.completion(), error.completion()).thenRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        done.complete(exitValue);
+                    }
+                });
+            }
+        });
+        done.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer exitValue, Throwable throwable) {
+                input.cancel(true);
+                if (done.isCancelled()) {
+                    process.destroy();
+                }
+            }
+        });
+        exitWatcher.run();
+        return done;
+    }
+
+    /**
+     * Polls a process until it exits, Java 8 processes cannot notify their exit.
+     */
+    private static class ExitWatcher implements Runnable {
+
+        private final Process process;
+
+        private final CompletableFuture<Integer> exited = new CompletableFuture<>();
+
+        private long pollDelay = MIN_POLL_DELAY_MILLIS;
+
+        ExitWatcher(Process process) {
+            this.process = process;
+        }
+
+        @Override
+        public void run() {
+            if (process.isAlive()) {
+                outputPumps.schedule(this, pollDelay, TimeUnit.MILLISECONDS);
+                pollDelay = Math.min(pollDelay * 2, MAX_POLL_DELAY_MILLIS);
+            } else {
+                exited.complete(process.exitValue());
+            }
+        }
+    }
+
+    /**
+     * Copies a process output on the shared pool. The owner of the process should call {@link #processExited()}
+     * as soon as it knows that the process exited, so that the rest of the output is read without waiting for the
+     * next poll.
+     */
+    public static final class OutputPump {
+
+        private final Process process;
+
+        private final InputStream input;
+
+        private final OutputSink sink;
+
+        private final OutputPublisher publisher;
+
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        };
+
+        private long pollDelay = MIN_POLL_DELAY_MILLIS;
+
+        private ScheduledFuture<?> nextPoll;
+
+        private boolean exited;
+
+        private final long startNanos = System.nanoTime();
+
+        private OutputPump() {
+            this.process = null;
+            this.input = null;
+            this.sink = null;
+            this.publisher = null;
+            done.complete(null);
+        }
+
+        private OutputPump(Process process, InputStream processOutput, Writer contextWriter,
+                OutputCapture captureOutput, FlushPolicy flushPolicy, OutputPublisher publisher) {
+            this.process = process;
+            this.input = processOutput;
+            this.publisher = publisher;
+            this.sink = new OutputSink(contextWriter, captureOutput, charset, flushPolicy, publisher);
+        }
+
+        public CompletableFuture<Void> completion() {
+            return done;
+        }
+
+        /**
+         * @return false if this pump was created by {@link #noOutput()}, for a merged or redirected output
+         */
+        public boolean isPumped() {
+            return sink != null;
+        }
+
+        /**
+         * The {@link System#nanoTime()} of the last output, or of the start of the pump.
+         */
+        public long getLastOutputNanos() {
+            return sink != null ? sink.getLastOutputNanos() : startNanos;
+        }
+
+        public synchronized void processExited() {
+            exited = true;
+            if (nextPoll != null && nextPoll.cancel(false)) {
+                nextPoll = null;
+                outputPumps.execute(task);
+            }
+        }
+
+        private void pump() {
+            synchronized (this) {
+                // a running poll can still be cancelled, processExited must not start a second pump
+                nextPoll = null;
+            }
+            // the buffer is only held while pumping, not while waiting for the next poll
+            byte[] buffer = BufferPool.acquireBytes();
+            try {
+                if (process.isAlive() && pumpAvailable(buffer)) {
+                    synchronized (this) {
+                        if (!exited) {
+                            nextPoll = outputPumps.schedule(task, pollDelay, TimeUnit.MILLISECONDS);
+                            return;
+                        }
+                    }
+                }
+                // the process exited, what it left in the pipe (or what its descendants still write) is read
+                boolean ended = false;
+                while (!ended && sink.isReady()) {
+                    int n = input.read(buffer);
+                    if (n == -1) {
+                        ended = true;
+                    } else {
+                        copy(buffer, n);
+                    }
+                }
+                if (!ended) {
+                    // the subscriber is behind
+                    outputPumps.schedule(task, MAX_POLL_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            } catch (Exception ignored) {
+            } finally {
+                BufferPool.release(buffer);
+            }
+            finish();
+        }
+
+        /**
+         * @return true if the end of the stream was not reached
+         */
+        private boolean pumpAvailable(byte[] buffer) throws IOException {
+            boolean pumped = false;
+            while (sink.isReady() && input.available() > 0) {
+                int n = input.read(buffer);
+                if (n == -1) {
+                    return false;
+                }
+                copy(buffer, n);
+                pumped = true;
+            }
+            try {
+                sink.idle();
+            } catch (Exception ignored) {
+            }
+            pollDelay = pumped ? MIN_POLL_DELAY_MILLIS : Math.min(pollDelay * 2, MAX_POLL_DELAY_MILLIS);
+            return true;
+        }
+
+        private void copy(byte[] buffer, int n) {
+            try {
+                sink.write(buffer, n);
+            } catch (Exception ignored) {
+                // the output is still read, so that the process is not blocked by a full pipe
+            }
+        }
+
+        private void finish() {
+            try {
+                input.close();
+                sink.close();
+            } catch (IOException ignored) {
+            }
+            if (publisher != null) {
+                publisher.delivered().thenRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        done.complete(null);
+                    }
+                });
+            } else {
+                done.complete(null);
+            }
+        }
+    }
+
+    private static ScheduledExecutorService createOutputPumps() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(POOL_SIZE,
+                                                                               new PumpThreadFactory("output"));
+        executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService createInputPumps() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE,
+                                                             POOL_SIZE,
+                                                             60,
+                                                             TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             new PumpThreadFactory("input"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService createBlockingInputPumps() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE,
+                                                             POOL_SIZE,
+                                                             60,
+                                                             TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             new PumpThreadFactory("blocking-input"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class PumpThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        PumpThreadFactory(String streamType) {
+            this.namePrefix = "jsr223-nativeshell-" + streamType + "-pump-";
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
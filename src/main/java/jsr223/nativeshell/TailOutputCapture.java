@@ -0,0 +1,155 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.util.Arrays;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+
+/**
+ * Keeps the last bytes of an output in a ring buffer of a fixed size, and optionally only its last lines, whatever
+ * the size of the output. It counts the bytes and lines it saw.
+ * <p>
+ * As the result of a script with a content type, the tail of its output is kept instead of the whole output with
+ * {@value #OUTPUT_TAIL_BYTES_NAME} or {@value #OUTPUT_TAIL_LINES_NAME}. With {@value #ERROR_TAIL_LINES_NAME}, the
+ * last lines of the error output of a failed script are added to the message of its exception. These options are
+ * read from the bindings or else from the generic information.
+ */
+public final class TailOutputCapture implements OutputCapture {
+
+    public static final String OUTPUT_TAIL_BYTES_NAME = "NATIVE_SHELL_OUTPUT_TAIL_BYTES";
+
+    public static final String OUTPUT_TAIL_LINES_NAME = "NATIVE_SHELL_OUTPUT_TAIL_LINES";
+
+    public static final String ERROR_TAIL_LINES_NAME = "NATIVE_SHELL_ERROR_TAIL_LINES";
+
+    // bounds the lines kept when only their number is given
+    private static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final byte[] ring;
+
+    private final long maxLines;
+
+    private int end;
+
+    private long totalBytes;
+
+    private long totalLines;
+
+    public TailOutputCapture(int maxBytes, long maxLines) {
+        this.ring = new byte[maxBytes];
+        this.maxLines = maxLines;
+    }
+
+    /**
+     * The capture of the output used as result, null when the whole output is kept.
+     */
+    public static TailOutputCapture forOutput(ScriptContext scriptContext) throws ScriptException {
+        long maxBytes = ScriptOptions.getLong(scriptContext, OUTPUT_TAIL_BYTES_NAME, 0);
+        long maxLines = ScriptOptions.getLong(scriptContext, OUTPUT_TAIL_LINES_NAME, 0);
+        if (maxBytes <= 0 && maxLines <= 0) {
+            return null;
+        }
+        return new TailOutputCapture(maxBytes > 0 ? (int) Math.min(maxBytes, Integer.MAX_VALUE - 8)
+                                                  : DEFAULT_MAX_BYTES, maxLines);
+    }
+
+    /**
+     * The capture of the error output added to the exception of a failed script, null if none.
+     */
+    public static TailOutputCapture forError(ScriptContext scriptContext) throws ScriptException {
+        long maxLines = ScriptOptions.getLong(scriptContext, ERROR_TAIL_LINES_NAME, 0);
+        return maxLines > 0 ? new TailOutputCapture(DEFAULT_MAX_BYTES, maxLines) : null;
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (bytes[i] == '\n') {
+                totalLines++;
+            }
+        }
+        totalBytes += len;
+        if (len >= ring.length) {
+            System.arraycopy(bytes, off + len - ring.length, ring, 0, ring.length);
+            end = 0;
+            return;
+        }
+        int firstPart = Math.min(len, ring.length - end);
+        System.arraycopy(bytes, off, ring, end, firstPart);
+        System.arraycopy(bytes, off + firstPart, ring, 0, len - firstPart);
+        end = (end + len) % ring.length;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * The number of lines, a last line without a line end included.
+     */
+    public synchronized long getTotalLines() {
+        boolean lastLineEnded = totalBytes == 0 || ring[(end + ring.length - 1) % ring.length] == '\n';
+        return lastLineEnded ? totalLines : totalLines + 1;
+    }
+
+    /**
+     * The last bytes of the output, starting at a line when only the last lines are kept.
+     */
+    public synchronized byte[] getTail() {
+        int size = (int) Math.min(totalBytes, ring.length);
+        byte[] tail = new byte[size];
+        int start = (end - size + ring.length) % ring.length;
+        int firstPart = Math.min(size, ring.length - start);
+        System.arraycopy(ring, start, tail, 0, firstPart);
+        System.arraycopy(ring, 0, tail, firstPart, size - firstPart);
+        if (maxLines <= 0) {
+            return tail;
+        }
+        // a line end terminating the output does not start a line
+        long lines = 0;
+        for (int i = tail.length - 2; i >= 0; i--) {
+            if (tail[i] == '\n' && ++lines == maxLines) {
+                return Arrays.copyOfRange(tail, i + 1, tail.length);
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Adds the tail of an error output, if it was captured, to an exception message.
+     */
+    public static String addErrorTail(String message, TailOutputCapture errorTail) {
+        if (errorTail == null || errorTail.getTotalBytes() == 0) {
+            return message;
+        }
+        return message + System.lineSeparator() + "Last lines of the error output (" + errorTail.getTotalLines() +
+               " lines, " + errorTail.getTotalBytes() + " bytes in total):" + System.lineSeparator() +
+               new String(errorTail.getTail(), StreamPumps.getCharset());
+    }
+}
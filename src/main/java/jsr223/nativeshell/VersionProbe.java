@@ -0,0 +1,298 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * The versions of the interpreter of a native shell, when {@value NativeShellScriptEngine#ENABLE_VERSION_PROPERTY_NAME}
+ * is true. The probe starts on a thread of its own when the script engine factory is built, so that the factories
+ * are discovered without waiting for the interpreter. The first call asking for the versions waits for the probe.
+ * <p>
+ * The probed versions are kept in memory and in the file {@value #CACHE_FILE_PROPERTY_NAME}
+ * (.cache/jsr223-nativeshell/versions.properties in the home directory by default), keyed by the path and the
+ * modification time of the interpreter, so that a restarted JVM does not probe them again. The file is ignored
+ * unless it belongs to the user running the JVM and only the owner can write it.
+ */
+public final class VersionProbe {
+
+    public static final String CACHE_FILE_PROPERTY_NAME = "jsr223.nativeshell.versionCache.file";
+
+    public static final String UNKNOWN_VERSION = "Could not determine version";
+
+    private static final ConcurrentMap<Class<?>, VersionProbe> probes = new ConcurrentHashMap<>();
+
+    private final NativeShell nativeShell;
+
+    private volatile String[] versions;
+
+    private FutureTask<Void> refresh;
+
+    VersionProbe(NativeShell nativeShell) {
+        this.nativeShell = nativeShell;
+    }
+
+    /**
+     * Starts probing the versions in the background if the version check is enabled.
+     */
+    public static VersionProbe of(NativeShell nativeShell) {
+        VersionProbe probe = probes.get(nativeShell.getClass());
+        if (probe == null) {
+            VersionProbe created = new VersionProbe(nativeShell);
+            probe = probes.putIfAbsent(nativeShell.getClass(), created);
+            if (probe != null) {
+                return probe;
+            }
+            probe = created;
+        }
+        if (NativeShellRunner.isVersionCheckEnabled()) {
+            probe.start();
+        }
+        return probe;
+    }
+
+    public String getInstalledVersion() {
+        return NativeShellRunner.isVersionCheckEnabled() ? getVersions()[0] : NativeShellScriptEngine.DEFAULT_VERSION;
+    }
+
+    public String getMajorVersion() {
+        return NativeShellRunner.isVersionCheckEnabled() ? getVersions()[1]
+                                                         : NativeShellScriptEngine.DEFAULT_MAJOR_VERSION;
+    }
+
+    private String[] getVersions() {
+        String[] knownVersions = versions;
+        if (knownVersions != null) {
+            return knownVersions;
+        }
+        Future<?> probe = start();
+        if (probe != null) {
+            try {
+                probe.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new String[] { UNKNOWN_VERSION, UNKNOWN_VERSION };
+            } catch (ExecutionException e) {
+                return new String[] { UNKNOWN_VERSION, UNKNOWN_VERSION };
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Reads the versions from the cache, or else starts probing them unless a probe already started.
+     *
+     * @return the probe running in the background, null if none was needed
+     */
+    synchronized Future<?> start() {
+        if (versions != null || refresh != null) {
+            return refresh;
+        }
+        final String cacheKey = getCacheKey();
+        String[] cached = cacheKey != null ? readCache(cacheKey) : null;
+        if (cached != null) {
+            versions = cached;
+            return null;
+        }
+        FutureTask<Void> probe = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                versions = probe(cacheKey);
+            }
+        }, null);
+        Thread thread = new Thread(probe, "jsr223-nativeshell-version-probe");
+        thread.setDaemon(true);
+        thread.start();
+        refresh = probe;
+        return probe;
+    }
+
+    /**
+     * The probe running in the background, null if none was needed.
+     */
+    synchronized Future<?> getRefresh() {
+        return refresh;
+    }
+
+    private String getCacheKey() {
+        File interpreter = findInterpreter();
+        return interpreter != null ? interpreter.getAbsolutePath() + "@" + interpreter.lastModified() : null;
+    }
+
+    private String[] probe(String cacheKey) {
+        String[] probed;
+        try {
+            NativeShellRunner runner = new NativeShellRunner(nativeShell);
+            probed = new String[] { runner.runAndGetOutput(nativeShell.getInstalledVersionCommand()),
+                                    runner.runAndGetOutput(nativeShell.getMajorVersionCommand()) };
+        } catch (RuntimeException e) {
+            return new String[] { UNKNOWN_VERSION, UNKNOWN_VERSION };
+        }
+        if (cacheKey != null) {
+            writeCache(cacheKey, probed);
+        }
+        return probed;
+    }
+
+    /**
+     * @return the interpreter found in the PATH, null if it cannot be found
+     */
+    private File findInterpreter() {
+        String name;
+        try {
+            name = nativeShell.createProcess(nativeShell.getInstalledVersionCommand()).command().get(0);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        File file = new File(name);
+        if (file.isAbsolute()) {
+            return file.isFile() ? file : null;
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        List<String> extensions = new ArrayList<>();
+        extensions.add("");
+        String pathExtensions = System.getenv("PATHEXT");
+        if (File.separatorChar == '\\' && pathExtensions != null) {
+            for (String extension : pathExtensions.split(";")) {
+                extensions.add(extension.toLowerCase(Locale.ROOT));
+            }
+        }
+        for (String directory : path.split(File.pathSeparator)) {
+            for (String extension : extensions) {
+                File candidate = new File(directory, name + extension);
+                if (candidate.isFile() && candidate.canExecute()) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static File getCacheFile() {
+        String cacheFile = System.getProperty(CACHE_FILE_PROPERTY_NAME);
+        return cacheFile != null ? new File(cacheFile)
+                                 : new File(new File(new File(System.getProperty("user.home"), ".cache"),
+                                                     "jsr223-nativeshell"),
+                                            "versions.properties");
+    }
+
+    private static synchronized String[] readCache(String cacheKey) {
+        Properties cache = loadCache(getCacheFile());
+        String installedVersion = cache.getProperty(cacheKey + ".installed");
+        String majorVersion = cache.getProperty(cacheKey + ".major");
+        return installedVersion != null && majorVersion != null ? new String[] { installedVersion, majorVersion }
+                                                                : null;
+    }
+
+    private static synchronized void writeCache(String cacheKey, String[] versions) {
+        File cacheFile = getCacheFile();
+        Properties cache = loadCache(cacheFile);
+        cache.setProperty(cacheKey + ".installed", versions[0]);
+        cache.setProperty(cacheKey + ".major", versions[1]);
+        File written = null;
+        try {
+            File directory = cacheFile.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory()) {
+                createOwnerOnlyDirectory(directory);
+            }
+            // replaced at once, other JVMs never read a partial file
+            written = ScriptFileCache.createOwnerOnlyFile(directory, "nativeshell-versions-");
+            try (OutputStream output = new FileOutputStream(written)) {
+                cache.store(output, null);
+            }
+            Files.move(written.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            // the versions are probed again by the next JVM
+            if (written != null) {
+                written.delete();
+            }
+        }
+    }
+
+    private static Properties loadCache(File cacheFile) {
+        Properties cache = new Properties();
+        if (cacheFile.isFile() && isOwnedAndOnlyWritableByUser(cacheFile)) {
+            try (InputStream input = new FileInputStream(cacheFile)) {
+                cache.load(input);
+            } catch (IOException | RuntimeException ignored) {
+                // an unreadable cache is overwritten
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Another user could otherwise make the factories report any version.
+     */
+    private static boolean isOwnedAndOnlyWritableByUser(File file) {
+        try {
+            if (!file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                return true;
+            }
+            PosixFileAttributes attributes = Files.readAttributes(file.toPath(), PosixFileAttributes.class);
+            Set<PosixFilePermission> permissions = attributes.permissions();
+            return attributes.owner().getName().equals(System.getProperty("user.name")) &&
+                   !permissions.contains(PosixFilePermission.GROUP_WRITE) &&
+                   !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void createOwnerOnlyDirectory(File directory) throws IOException {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(directory.toPath(),
+                                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(directory.toPath());
+        }
+    }
+}
@@ -34,6 +34,19 @@ import jsr223.nativeshell.NativeShell;
 
 public class Bash implements NativeShell {
 
+    /**
+     * Scripts up to this many bytes are given inline to {@code bash -c}, larger ones are written ahead of the
+     * standard input of bash. They are never written to a temporary file.
+     */
+    public static final String INLINE_SCRIPT_MAX_LENGTH_PROPERTY_NAME = "jsr223.nativeshell.bash.inlineScriptMaxLength";
+
+    // well below the 128KiB a single argument is allowed on Linux, the environment shares the same space
+    private static final int DEFAULT_INLINE_SCRIPT_MAX_LENGTH = 32 * 1024;
+
+    public static int getInlineScriptMaxLength() {
+        return Integer.getInteger(INLINE_SCRIPT_MAX_LENGTH_PROPERTY_NAME, DEFAULT_INLINE_SCRIPT_MAX_LENGTH);
+    }
+
     @Override
     public ProcessBuilder createProcess(File commandAsFile) {
         return new ProcessBuilder("bash", commandAsFile.getAbsolutePath());
@@ -44,6 +57,27 @@ public class Bash implements NativeShell {
         return new ProcessBuilder("bash", "-c", command);
     }
 
+    /**
+     * Runs the script given as argument, the arguments added to the command are its positional parameters.
+     */
+    public ProcessBuilder createInlineProcess(String script) {
+        return new ProcessBuilder("bash", "-c", script, "bash");
+    }
+
+    /**
+     * Runs the script read from the first bytes of the standard input, the script can read what follows them. The
+     * arguments added to the command are its positional parameters.
+     */
+    public ProcessBuilder createProcessReadingScriptFromInput(int scriptLength) {
+        // read does not read past the script, unlike bash reading its script from a pipe in blocks; -N counts bytes
+        // in the C locale, and the variable is expanded before eval unsets it
+        return new ProcessBuilder("bash",
+                                  "-c",
+                                  "LC_ALL=C IFS= read -r -N " + scriptLength + " jsr223_nativeshell_script; " +
+                                        "eval \"unset -v jsr223_nativeshell_script; $jsr223_nativeshell_script\"",
+                                  "bash");
+    }
+
     @Override
     public String getInstalledVersionCommand() {
         return "echo -n $BASH_VERSION";
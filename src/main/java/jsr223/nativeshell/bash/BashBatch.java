@@ -0,0 +1,415 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.bash;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+
+import org.ow2.proactive.utils.CookieBasedProcessTreeKiller;
+
+import jsr223.nativeshell.NativeShellRunner;
+import jsr223.nativeshell.NativeShellScriptEngine;
+
+
+/**
+ * Evaluates several bash scripts in a single bash process, each one in its own subshell.
+ * <p>
+ * Every script gets the bindings and arguments of its own context, its output is written to the writers of its
+ * context and its exit value is set in its bindings as {@link NativeShellScriptEngine#eval} does. The exit values
+ * are returned in submission order, a failing script does not stop the batch. The scripts run one after the other
+ * without input, the output of a background process that outlives its script goes to the next script. The bindings
+ * of the scripts are written to the standard input of the batch, so that their values are neither in its arguments,
+ * nor in its environment, nor in files. Cancelling the batch kills its process.
+ * <p>
+ * Scripts can also be {@link #submit submitted} one by one, the ones submitted within the coalescing window of the
+ * batch run together.
+ */
+public class BashBatch {
+
+    private static final int MAX_COALESCED_SCRIPTS = 64;
+
+    private static final String EXPORTS_VARIABLE = "jsr223_nativeshell_exports";
+
+    private static final Pattern ENVIRONMENT_VARIABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final ScheduledExecutorService coalescingTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "jsr223-nativeshell-bash-batch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long coalescingWindowMillis;
+
+    private List<Submission> pendingSubmissions = new ArrayList<>();
+
+    public BashBatch(long coalescingWindowMillis) {
+        this.coalescingWindowMillis = coalescingWindowMillis;
+    }
+
+    /**
+     * Runs the scripts in one bash process and waits for them.
+     *
+     * @return the exit values of the scripts, in the same order
+     */
+    public static List<Integer> eval(List<String> scripts, List<ScriptContext> contexts) throws ScriptException {
+        try {
+            return evalAsync(scripts, contexts).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScriptException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ScriptException) {
+                throw (ScriptException) e.getCause();
+            }
+            throw new ScriptException(new Exception(e.getCause()));
+        }
+    }
+
+    /**
+     * Runs the scripts in one bash process without waiting for them.
+     */
+    public static CompletableFuture<List<Integer>> evalAsync(List<String> scripts, final List<ScriptContext> contexts)
+            throws ScriptException {
+        if (scripts.size() != contexts.size()) {
+            throw new IllegalArgumentException("Each script needs its own context");
+        }
+        String boundary = "jsr223-nativeshell-batch-" + UUID.randomUUID();
+        StringBuilder program = new StringBuilder();
+        StringBuilder exports = new StringBuilder();
+        final List<CookieBasedProcessTreeKiller> processTreeKillers = new ArrayList<>();
+        List<Writer> outputs = new ArrayList<>();
+        List<Writer> errors = new ArrayList<>();
+        final BatchOutput output = new BatchOutput(boundary, outputs, true);
+        final CompletableFuture<Integer> batch;
+        for (int i = 0; i < scripts.size(); i++) {
+            ScriptContext context = contexts.get(i);
+            Map<String, String> environment = new HashMap<>();
+            NativeShellRunner.addBindingsAsEnvironmentVariables(context, environment);
+            CookieBasedProcessTreeKiller processTreeKiller = NativeShellRunner.createProcessTreeKiller(context,
+                                                                                                      environment);
+            if (processTreeKiller != null) {
+                processTreeKillers.add(processTreeKiller);
+            }
+            appendExports(exports, environment);
+            appendScript(program, scripts.get(i), NativeShellRunner.getArguments(context), boundary);
+            outputs.add(context.getWriter());
+            errors.add(context.getErrorWriter());
+        }
+
+        SimpleScriptContext batchContext = new SimpleScriptContext();
+        batchContext.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+        batchContext.setReader(new StringReader(exports.toString()));
+        batchContext.setWriter(output);
+        batchContext.setErrorWriter(new BatchOutput(boundary, errors, false));
+        batch = new NativeShellRunner(new Bash()).runAsync(program.toString(), batchContext, null);
+        batch.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer batchExitValue, Throwable throwable) {
+                // also when the batch failed or was cancelled
+                for (CookieBasedProcessTreeKiller processTreeKiller : processTreeKillers) {
+                    processTreeKiller.kill();
+                }
+            }
+        });
+        final CompletableFuture<List<Integer>> result = batch.thenApply(new Function<Integer, List<Integer>>() {
+            @Override
+            public List<Integer> apply(Integer batchExitValue) {
+                List<Integer> exitValues = output.getExitValues();
+                while (exitValues.size() < contexts.size()) {
+                    // the batch itself failed
+                    exitValues.add(batchExitValue);
+                }
+                for (int i = 0; i < contexts.size(); i++) {
+                    NativeShellScriptEngine.setExitValue(contexts.get(i), exitValues.get(i));
+                }
+                return exitValues;
+            }
+        });
+        result.whenComplete(new BiConsumer<List<Integer>, Throwable>() {
+            @Override
+            public void accept(List<Integer> exitValues, Throwable throwable) {
+                if (result.isCancelled()) {
+                    batch.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Adds the script to the next batch, which runs once the coalescing window elapsed since its first script.
+     *
+     * @return the exit value of the script
+     */
+    public synchronized CompletableFuture<Integer> submit(String script, ScriptContext context) {
+        Submission submission = new Submission(script, context);
+        pendingSubmissions.add(submission);
+        if (pendingSubmissions.size() == 1) {
+            coalescingTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, coalescingWindowMillis, TimeUnit.MILLISECONDS);
+        } else if (pendingSubmissions.size() >= MAX_COALESCED_SCRIPTS) {
+            coalescingTimer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+        return submission.exitValue;
+    }
+
+    private void flush() {
+        final List<Submission> submissions;
+        synchronized (this) {
+            submissions = pendingSubmissions;
+            pendingSubmissions = new ArrayList<>();
+        }
+        if (submissions.isEmpty()) {
+            return;
+        }
+        List<String> scripts = new ArrayList<>();
+        List<ScriptContext> contexts = new ArrayList<>();
+        for (Submission submission : submissions) {
+            scripts.add(submission.script);
+            contexts.add(submission.context);
+        }
+        try {
+            evalAsync(scripts, contexts).whenComplete(new BiConsumer<List<Integer>, Throwable>() {
+                @Override
+                public void accept(List<Integer> exitValues, Throwable throwable) {
+                    for (int i = 0; i < submissions.size(); i++) {
+                        if (throwable != null) {
+                            submissions.get(i).exitValue.completeExceptionally(throwable);
+                        } else {
+                            submissions.get(i).exitValue.complete(exitValues.get(i));
+                        }
+                    }
+                }
+            });
+        } catch (ScriptException | RuntimeException e) {
+            for (Submission submission : submissions) {
+                submission.exitValue.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Appends the exports of the variables of a script to the input of the batch, ended by a NUL character, which
+     * no value contains.
+     */
+    private static void appendExports(StringBuilder exports, Map<String, String> environment) {
+        for (Map.Entry<String, String> variable : environment.entrySet()) {
+            String value = variable.getValue();
+            if (ENVIRONMENT_VARIABLE_NAME.matcher(variable.getKey()).matches() && value.indexOf('\0') < 0) {
+                exports.append("export ").append(variable.getKey()).append('=');
+                appendQuoted(exports, value);
+                exports.append('\n');
+            }
+        }
+        exports.append('\0');
+    }
+
+    private static void appendScript(StringBuilder program, String script, List<String> arguments, String boundary) {
+        // read before the subshell, whose input is /dev/null, and expanded before eval unsets it
+        program.append("IFS= read -r -d '' ").append(EXPORTS_VARIABLE).append('\n');
+        program.append("(\n");
+        program.append("eval \"unset -v ").append(EXPORTS_VARIABLE);
+        program.append("; $").append(EXPORTS_VARIABLE).append("\"\n");
+        program.append("set --");
+        for (String argument : arguments) {
+            program.append(' ');
+            appendQuoted(program, argument);
+        }
+        // eval confines a syntax error to the script instead of stopping the whole batch
+        program.append("\neval ");
+        appendQuoted(program, script.trim());
+        program.append("\n) < /dev/null\n");
+        program.append("printf '\\n%s %d\\n' '").append(boundary).append("' $?\n");
+        program.append("printf '\\n%s\\n' '").append(boundary).append("' >&2\n");
+    }
+
+    private static void appendQuoted(StringBuilder program, String value) {
+        program.append('\'').append(value.replace("'", "'\\''")).append('\'');
+    }
+
+    private static class Submission {
+
+        private final String script;
+
+        private final ScriptContext context;
+
+        private final CompletableFuture<Integer> exitValue = new CompletableFuture<>();
+
+        Submission(String script, ScriptContext context) {
+            this.script = script;
+            this.context = context;
+        }
+    }
+
+    /**
+     * Dispatches the output of the batch to the writers of the scripts. Each script output is followed by a new line
+     * and the boundary, on the standard output the boundary is followed by the exit value of the script. A line
+     * longer than {@value #MAX_LINE_LENGTH} characters cannot be a boundary, it is written out in parts.
+     */
+    private static class BatchOutput extends Writer {
+
+        private static final int MAX_LINE_LENGTH = 8192;
+
+        private final String boundary;
+
+        private final List<Writer> writers;
+
+        private final boolean withExitValues;
+
+        private final List<Integer> exitValues = new ArrayList<>();
+
+        private final StringBuilder line = new StringBuilder();
+
+        private boolean pendingNewLine;
+
+        private boolean continuedLine;
+
+        private int currentScript;
+
+        BatchOutput(String boundary, List<Writer> writers, boolean withExitValues) {
+            this.boundary = boundary;
+            this.writers = writers;
+            this.withExitValues = withExitValues;
+        }
+
+        synchronized List<Integer> getExitValues() {
+            return new ArrayList<>(exitValues);
+        }
+
+        @Override
+        public synchronized void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                if (cbuf[i] == '\n') {
+                    endOfLine();
+                } else {
+                    line.append(cbuf[i]);
+                    if (line.length() >= MAX_LINE_LENGTH) {
+                        writeLine();
+                        pendingNewLine = false;
+                        continuedLine = true;
+                    }
+                }
+            }
+        }
+
+        private void endOfLine() throws IOException {
+            if (isBoundary()) {
+                if (withExitValues) {
+                    exitValues.add(Integer.valueOf(line.substring(boundary.length() + 1)));
+                }
+                line.setLength(0);
+                // the new line before the boundary is not part of the script output
+                pendingNewLine = false;
+                flush();
+                currentScript++;
+                return;
+            }
+            writeLine();
+            pendingNewLine = true;
+            continuedLine = false;
+        }
+
+        private void writeLine() throws IOException {
+            Writer writer = currentWriter();
+            if (writer != null) {
+                if (pendingNewLine) {
+                    writer.write('\n');
+                }
+                writer.append(line);
+            }
+            line.setLength(0);
+        }
+
+        private boolean isBoundary() {
+            if (continuedLine) {
+                return false;
+            }
+            if (withExitValues) {
+                return line.length() > boundary.length() && line.indexOf(boundary + " ") == 0;
+            }
+            return line.length() == boundary.length() && line.indexOf(boundary) == 0;
+        }
+
+        private Writer currentWriter() {
+            return currentScript < writers.size() ? writers.get(currentScript) : null;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            Writer writer = currentWriter();
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            // the batch was interrupted, what is left belongs to the script that was running
+            Writer writer = currentWriter();
+            if (writer != null) {
+                if (pendingNewLine) {
+                    writer.write('\n');
+                }
+                writer.append(line);
+                writer.flush();
+            }
+            pendingNewLine = false;
+            line.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.bash;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Pattern;
+
+import jsr223.nativeshell.BaseEnvironment;
+import jsr223.nativeshell.IOUtils;
+
+
+/**
+ * A resident bash process that forks a subshell for every script it is asked to run, so that the JVM does not
+ * have to fork for each evaluation.
+ * <p>
+ * Disabled by default, it is enabled with the system property {@value #ENABLE_FORK_SERVER_PROPERTY_NAME}.
+ * A server runs one script at a time and waits for it, servers are started lazily and idle ones are kept
+ * in a JVM wide pool whose size is bounded by {@value #MAX_IDLE_SERVERS_PROPERTY_NAME}. The forked subshell
+ * executes the command of the script, which thus has its own {@code $$}, {@code $0} and environment as if the JVM
+ * had started it; only its {@code $PPID} is the server.
+ */
+public class BashForkServer {
+
+    public static final String ENABLE_FORK_SERVER_PROPERTY_NAME = "jsr223.nativeshell.bash.forkServer";
+
+    public static final String MAX_IDLE_SERVERS_PROPERTY_NAME = "jsr223.nativeshell.bash.forkServer.maxIdle";
+
+    private static final String SERVER_SCRIPT = IOUtils.toString(BashForkServer.class.getResourceAsStream("fork-server.bash"));
+
+    private static final String SERVER_EXITED = "";
+
+    private static final Pattern SHELL_VARIABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final Queue<BashForkServer> idleServers = new ConcurrentLinkedQueue<>();
+
+    private final Process server;
+
+    private final Writer requests;
+
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+    private final File directory;
+
+    private BashForkServer() throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder("bash", "--norc", "--noprofile", "-c", SERVER_SCRIPT, "bash");
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        BaseEnvironment.apply(processBuilder, Collections.<String, String> emptyMap());
+        server = processBuilder.start();
+        requests = new OutputStreamWriter(server.getOutputStream());
+
+        Thread responseReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, "jsr223-nativeshell-bash-fork-server");
+        responseReader.setDaemon(true);
+        responseReader.start();
+
+        try {
+            directory = new File(readResponse("READY"));
+        } catch (IOException e) {
+            server.destroy();
+            throw e;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty(ENABLE_FORK_SERVER_PROPERTY_NAME));
+    }
+
+    /**
+     * A server exports the variables with bash, which rejects the names that are not shell identifiers, such as
+     * {@code my.name}. A process started by the JVM gets them in its environment.
+     *
+     * @return whether a server can give all the variables to the script
+     */
+    public static boolean canExport(Map<String, String> addedVariables) {
+        for (String name : addedVariables.keySet()) {
+            if (!SHELL_VARIABLE_NAME.matcher(name).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the command of the process builder in a subshell forked by an idle server, or by a new one. The servers
+     * have the {@link BaseEnvironment base environment}, only the added variables are sent to them.
+     */
+    public static Process start(ProcessBuilder processBuilder, Map<String, String> addedVariables)
+            throws IOException {
+        BashForkServer server = idleServers.poll();
+        while (server != null && !server.server.isAlive()) {
+            server = idleServers.poll();
+        }
+        if (server == null) {
+            server = new BashForkServer();
+        }
+        try {
+            return server.run(processBuilder, addedVariables);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    private Process run(ProcessBuilder processBuilder, Map<String, String> addedVariables) throws IOException {
+        requests.write(runRequest(processBuilder, addedVariables));
+        requests.flush();
+        int pid = Integer.parseInt(readResponse("PID"));
+        return new ForkServerProcess(this, pid);
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Blocks until the running script exits.
+     */
+    int waitForExit() throws IOException {
+        return Integer.parseInt(readResponse("EXIT"));
+    }
+
+    boolean hasExited() {
+        return !responses.isEmpty();
+    }
+
+    void signal(String signal) throws IOException {
+        IOUtils.writeStringToFile(signal + "\n", new File(directory, "signal"));
+        server.destroy();
+    }
+
+    /**
+     * Hands the server back to the pool once its script exited and the streams of the script were closed.
+     */
+    void release(boolean reusable) {
+        if (reusable && idleServers.size() < getMaxIdleServers()) {
+            idleServers.add(this);
+        } else {
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            requests.close();
+        } catch (IOException ignored) {
+            // the server exits anyway once its input is closed
+        }
+    }
+
+    private void readResponses() {
+        try (BufferedReader serverOutput = new BufferedReader(new InputStreamReader(server.getInputStream()))) {
+            String response;
+            while ((response = serverOutput.readLine()) != null) {
+                responses.add(response);
+            }
+        } catch (IOException ignored) {
+            // same as the server exiting
+        } finally {
+            responses.add(SERVER_EXITED);
+        }
+    }
+
+    private String readResponse(String expectedType) throws IOException {
+        String response;
+        try {
+            response = responses.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the bash fork server");
+        }
+        if (SERVER_EXITED.equals(response)) {
+            responses.add(SERVER_EXITED);
+        }
+        if (!response.startsWith(expectedType + " ")) {
+            throw new IOException("Bash fork server answered " + response + " instead of " + expectedType);
+        }
+        return response.substring(expectedType.length() + 1);
+    }
+
+    private static int getMaxIdleServers() {
+        return Integer.getInteger(MAX_IDLE_SERVERS_PROPERTY_NAME, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static String runRequest(ProcessBuilder processBuilder, Map<String, String> addedVariables) {
+        StringBuilder request = new StringBuilder("RUN\n");
+        appendField(request, processBuilder.directory() == null ? "" : processBuilder.directory().getAbsolutePath());
+
+        List<String> command = processBuilder.command();
+        request.append(command.size()).append('\n');
+        for (String argument : command) {
+            appendField(request, argument);
+        }
+
+        request.append(addedVariables.size()).append('\n');
+        for (Map.Entry<String, String> variable : addedVariables.entrySet()) {
+            appendField(request, variable.getKey() + "=" + variable.getValue());
+        }
+        return request.toString();
+    }
+
+    /**
+     * Fields are sent one per line, escaped so that the server can decode them with printf %b.
+     */
+    private static void appendField(StringBuilder request, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                request.append("\\\\");
+            } else if (c == '\n') {
+                request.append("\\n");
+            } else if (c == '\r') {
+                request.append("\\r");
+            } else {
+                request.append(c);
+            }
+        }
+        request.append('\n');
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.bash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A subshell forked by a {@link BashForkServer}, seen through the {@link Process} API.
+ * <p>
+ * Its standard streams are the named pipes of the server. The server is handed back to the pool once the
+ * subshell exited and the three streams were closed, unless the output was not read until the end in which
+ * case a descendant might still write to it and the server is stopped.
+ */
+class ForkServerProcess extends Process {
+
+    private final BashForkServer server;
+
+    private final int pid;
+
+    private final ReentrantLock exitLock = new ReentrantLock();
+
+    private volatile Integer exitValue;
+
+    private int openStreams = 3;
+
+    private boolean reusable = true;
+
+    private final OutputStream input;
+
+    private final InputStream output;
+
+    private final InputStream error;
+
+    ForkServerProcess(BashForkServer server, int pid) throws IOException {
+        this.server = server;
+        this.pid = pid;
+        File directory = server.getDirectory();
+        // same order as the redirections of the subshell, each open blocks until the other side is opened
+        input = new ServerOutputStream(new FileOutputStream(new File(directory, "in")));
+        output = new ServerInputStream(new FileInputStream(new File(directory, "out")));
+        error = new ServerInputStream(new FileInputStream(new File(directory, "err")));
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return input;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return output;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return error;
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        exitLock.lockInterruptibly();
+        try {
+            if (exitValue == null) {
+                readExitValue();
+            }
+            if (exitValue == null) {
+                Thread.interrupted();
+                throw new InterruptedException();
+            }
+            return exitValue;
+        } finally {
+            exitLock.unlock();
+        }
+    }
+
+    @Override
+    public int exitValue() {
+        if (exitValue == null && exitLock.tryLock()) {
+            try {
+                if (exitValue == null && server.hasExited()) {
+                    readExitValue();
+                }
+            } finally {
+                exitLock.unlock();
+            }
+        }
+        if (exitValue == null) {
+            throw new IllegalThreadStateException("process hasn't exited");
+        }
+        return exitValue;
+    }
+
+    @Override
+    public boolean isAlive() {
+        try {
+            exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        signal("TERM");
+    }
+
+    @Override
+    public Process destroyForcibly() {
+        signal("KILL");
+        return this;
+    }
+
+    private void signal(String signal) {
+        if (isAlive()) {
+            try {
+                server.signal(signal);
+            } catch (IOException ignored) {
+                // the server is gone and so is the subshell
+            }
+        }
+    }
+
+    private void readExitValue() {
+        try {
+            exited(server.waitForExit(), true);
+        } catch (InterruptedIOException e) {
+            // still running, the caller decides what to do with it
+        } catch (IOException | RuntimeException e) {
+            exited(-1, false);
+        }
+    }
+
+    private synchronized void exited(int exitValue, boolean serverReusable) {
+        this.exitValue = exitValue;
+        reusable &= serverReusable;
+        releaseServerIfUnused();
+    }
+
+    private synchronized void streamClosed(boolean readUntilEnd) {
+        reusable &= readUntilEnd;
+        openStreams--;
+        releaseServerIfUnused();
+    }
+
+    private void releaseServerIfUnused() {
+        if (exitValue != null && openStreams == 0) {
+            openStreams = -1;
+            server.release(reusable);
+        }
+    }
+
+    private class ServerInputStream extends FilterInputStream {
+
+        private boolean endReached;
+
+        private boolean closed;
+
+        ServerInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            endReached |= read == -1;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            endReached |= read == -1;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    streamClosed(endReached);
+                }
+            }
+        }
+    }
+
+    private class ServerOutputStream extends FilterOutputStream {
+
+        private boolean closed;
+
+        ServerOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    streamClosed(true);
+                }
+            }
+        }
+    }
+}
@@ -34,8 +34,8 @@ import java.util.Map;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
 
-import jsr223.nativeshell.NativeShellRunner;
 import jsr223.nativeshell.NativeShellScriptEngine;
+import jsr223.nativeshell.VersionProbe;
 
 
 public class CmdScriptEngineFactory implements ScriptEngineFactory {
@@ -44,20 +44,17 @@ public class CmdScriptEngineFactory implements ScriptEngineFactory {
 
     private static final String ENGINE = "Cmd interpreter";
 
-    private static final String ENGINE_VERSION = new NativeShellRunner(new Cmd()).getInstalledVersion();
-
     private static final String LANGUAGE = "Cmd";
 
-    private static final String LANGUAGE_VERSION = new NativeShellRunner(new Cmd()).getMajorVersion();
+    // probed on first use, not when the factories are discovered
+    private static final VersionProbe versions = VersionProbe.of(new Cmd());
 
     private static final Map<String, Object> parameters = new HashMap<String, Object>();
 
     static {
         parameters.put(ScriptEngine.NAME, NAME);
         parameters.put(ScriptEngine.ENGINE, ENGINE);
-        parameters.put(ScriptEngine.ENGINE_VERSION, ENGINE_VERSION);
         parameters.put(ScriptEngine.LANGUAGE, LANGUAGE);
-        parameters.put(ScriptEngine.LANGUAGE_VERSION, LANGUAGE_VERSION);
     }
 
     @Override
@@ -67,7 +64,7 @@ public class CmdScriptEngineFactory implements ScriptEngineFactory {
 
     @Override
     public String getEngineVersion() {
-        return ENGINE_VERSION;
+        return versions.getInstalledVersion();
     }
 
     @Override
@@ -97,11 +94,16 @@ public class CmdScriptEngineFactory implements ScriptEngineFactory {
 
     @Override
     public String getLanguageVersion() {
-        return LANGUAGE_VERSION;
+        return versions.getMajorVersion();
     }
 
     @Override
     public Object getParameter(String key) {
+        if (ScriptEngine.ENGINE_VERSION.equals(key)) {
+            return getEngineVersion();
+        } else if (ScriptEngine.LANGUAGE_VERSION.equals(key)) {
+            return getLanguageVersion();
+        }
         return parameters.get(key);
     }
 
@@ -25,79 +25,205 @@
  */
 package jsr223.nativeshell.executable;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.StringTokenizer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
- * From org.apache.tools.ant.types.Commandline (Ant 1.9.4)
+ * Splits a command line into arguments the way a POSIX shell does, without running a shell:
+ * <ul>
+ * <li>arguments are separated by spaces, tabs and new lines</li>
+ * <li>single quotes keep everything up to the next single quote</li>
+ * <li>double quotes keep everything up to the next double quote, a backslash only escapes {@code "}, {@code \},
+ * {@code $}, {@code `} and new lines in them</li>
+ * <li>out of quotes, a backslash escapes the next character, a backslash before a new line joins the lines</li>
+ * </ul>
+ * Backslashes are literal on Windows, where they separate paths, unless {@value #BACKSLASH_ESCAPES_PROPERTY_NAME} is
+ * true. The arguments of the last {@value #CACHE_SIZE_PROPERTY_NAME} command lines are cached.
  */
 public class CommandLine {
+
+    public static final String BACKSLASH_ESCAPES_PROPERTY_NAME = "jsr223.nativeshell.executable.backslashEscapes";
+
+    public static final String CACHE_SIZE_PROPERTY_NAME = "jsr223.nativeshell.executable.commandLineCacheSize";
+
+    private static final boolean BACKSLASH_ESCAPES = isBackslashEscapes();
+
+    private static final int CACHE_SIZE = Integer.getInteger(CACHE_SIZE_PROPERTY_NAME, 256);
+
+    private static final Map<String, String[]> parsedCommandLines = new LinkedHashMap<String, String[]>(16,
+                                                                                                       0.75f,
+                                                                                                       true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static boolean isBackslashEscapes() {
+        String backslashEscapes = System.getProperty(BACKSLASH_ESCAPES_PROPERTY_NAME);
+        return backslashEscapes != null ? Boolean.parseBoolean(backslashEscapes) : File.separatorChar != '\\';
+    }
+
     /**
      * Crack a command line.
      *
      * @param toProcess the command line to process.
      * @return the command line broken into strings.
      * An empty or null toProcess parameter results in a zero sized array.
+     * @throws SyntaxException if a quote is not closed
      */
     public static String[] translateCommandline(String toProcess) {
         if (toProcess == null || toProcess.length() == 0) {
             //no command? no string
             return new String[0];
         }
-        // parse with a simple finite state machine
-
-        final int normal = 0;
-        final int inQuote = 1;
-        final int inDoubleQuote = 2;
-        int state = normal;
-        final StringTokenizer tok = new StringTokenizer(toProcess, "\"\' ", true);
-        final ArrayList<String> result = new ArrayList<String>();
-        final StringBuilder current = new StringBuilder();
-        boolean lastTokenHasBeenQuoted = false;
-
-        while (tok.hasMoreTokens()) {
-            String nextTok = tok.nextToken();
-            switch (state) {
-                case inQuote:
-                    if ("\'".equals(nextTok)) {
-                        lastTokenHasBeenQuoted = true;
-                        state = normal;
-                    } else {
-                        current.append(nextTok);
-                    }
-                    break;
-                case inDoubleQuote:
-                    if ("\"".equals(nextTok)) {
-                        lastTokenHasBeenQuoted = true;
-                        state = normal;
-                    } else {
-                        current.append(nextTok);
-                    }
-                    break;
-                default:
-                    if ("\'".equals(nextTok)) {
-                        state = inQuote;
-                    } else if ("\"".equals(nextTok)) {
-                        state = inDoubleQuote;
-                    } else if (" ".equals(nextTok)) {
-                        if (lastTokenHasBeenQuoted || current.length() != 0) {
-                            result.add(current.toString());
-                            current.setLength(0);
-                        }
-                    } else {
-                        current.append(nextTok);
+        String[] arguments;
+        synchronized (parsedCommandLines) {
+            arguments = parsedCommandLines.get(toProcess);
+        }
+        if (arguments == null) {
+            arguments = parse(toProcess, BACKSLASH_ESCAPES);
+            synchronized (parsedCommandLines) {
+                parsedCommandLines.put(toProcess, arguments);
+            }
+        }
+        // the cached arguments are shared
+        return arguments.clone();
+    }
+
+    static String[] parse(String commandLine, boolean backslashEscapes) {
+        List<CommandTemplate.Argument> arguments = tokenize(commandLine, backslashEscapes, false);
+        String[] parsed = new String[arguments.size()];
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = arguments.get(i).fill(Collections.<String, Object> emptyMap());
+        }
+        return parsed;
+    }
+
+    static List<CommandTemplate.Argument> tokenize(String commandLine, boolean slots) {
+        return tokenize(commandLine, BACKSLASH_ESCAPES, slots);
+    }
+
+    /**
+     * @param slots true if the binding slots of {@link CommandTemplate} are read, in and out of quotes
+     */
+    static List<CommandTemplate.Argument> tokenize(String commandLine, boolean backslashEscapes, boolean slots) {
+        List<CommandTemplate.Argument> arguments = new ArrayList<>();
+        CommandTemplate.ArgumentBuilder current = new CommandTemplate.ArgumentBuilder();
+        boolean inArgument = false;
+        char quote = 0;
+        int quoteStart = -1;
+        int length = commandLine.length();
+        for (int i = 0; i < length; i++) {
+            char c = commandLine.charAt(i);
+            if (c == '$' && slots) {
+                i = CommandTemplate.readSlot(commandLine, i, current) - 1;
+                inArgument = true;
+            } else if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else if (c == '\\' && backslashEscapes && i + 1 < length &&
+                           isEscapedInDoubleQuotes(commandLine.charAt(i + 1))) {
+                    i++;
+                    if (commandLine.charAt(i) != '\n') {
+                        current.append(commandLine.charAt(i));
                     }
-                    lastTokenHasBeenQuoted = false;
-                    break;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                quoteStart = i;
+                current.quoted();
+                inArgument = true;
+            } else if (c == '\\' && backslashEscapes && i + 1 < length) {
+                i++;
+                if (commandLine.charAt(i) != '\n') {
+                    current.append(commandLine.charAt(i));
+                    inArgument = true;
+                }
+            } else if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                if (inArgument) {
+                    arguments.add(current.build());
+                    current = new CommandTemplate.ArgumentBuilder();
+                    inArgument = false;
+                }
+            } else {
+                current.append(c);
+                inArgument = true;
             }
         }
-        if (lastTokenHasBeenQuoted || current.length() != 0) {
-            result.add(current.toString());
+        if (quote != 0) {
+            throw new SyntaxException(commandLine, quoteStart, quote == '"' ? "double quote" : "single quote");
         }
-        if (state == inQuote || state == inDoubleQuote) {
-            throw new RuntimeException("unbalanced quotes in " + toProcess);
+        if (inArgument) {
+            arguments.add(current.build());
+        }
+        return arguments;
+    }
+
+    private static boolean isEscapedInDoubleQuotes(char c) {
+        return c == '"' || c == '\\' || c == '$' || c == '`' || c == '\n';
+    }
+
+    /**
+     * A quote that is not closed, with the line and column where it was opened.
+     */
+    public static class SyntaxException extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int line;
+
+        private final int column;
+
+        SyntaxException(String commandLine, int position, String unclosed) {
+            this(commandLine, lineOf(commandLine, position), columnOf(commandLine, position), unclosed);
+        }
+
+        private SyntaxException(String commandLine, int line, int column, String unclosed) {
+            super("Unclosed " + unclosed + " opened at line " + line + ", column " + column + " of: " + commandLine);
+            this.line = line;
+            this.column = column;
+        }
+
+        private static int lineOf(String commandLine, int position) {
+            int line = 1;
+            for (int i = 0; i < position; i++) {
+                if (commandLine.charAt(i) == '\n') {
+                    line++;
+                }
+            }
+            return line;
+        }
+
+        private static int columnOf(String commandLine, int position) {
+            return position - commandLine.lastIndexOf('\n', position - 1);
+        }
+
+        /**
+         * @return the line of the error, starting at 1
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return the column of the error, starting at 1
+         */
+        public int getColumn() {
+            return column;
         }
-        return result.toArray(new String[result.size()]);
     }
 }
@@ -0,0 +1,268 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.executable;
+
+import static jsr223.nativeshell.StringUtils.toEmptyStringIfNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A command line split once into arguments by {@link CommandLine}, each argument made of literal segments and binding
+ * slots, {@code $NAME} or {@code ${NAME}}, that are filled in a single pass. The values are copied as they are into
+ * their argument, they are neither split nor parsed again, whatever quotes or backslashes they hold. An argument made
+ * only of unquoted slots is left out when their values are empty. {@link #substitute} instead fills the slots as text
+ * before the command line is split, so that the values are split into arguments as the engine always did.
+ * <p>
+ * Slots are read in and out of quotes, as the engine always did, but not when their {@code $} is escaped. A
+ * {@code $NAME} slot takes the longest bound name its text starts with, {@code $HOME_DIR} is {@code HOME} followed by
+ * {@code _DIR} when only {@code HOME} is bound. Slots of unbound names are left as they are. The templates of the last
+ * {@value #CACHE_SIZE_PROPERTY_NAME} command lines are cached.
+ */
+final class CommandTemplate {
+
+    static final String CACHE_SIZE_PROPERTY_NAME = "jsr223.nativeshell.executable.templateCacheSize";
+
+    private static final int CACHE_SIZE = Integer.getInteger(CACHE_SIZE_PROPERTY_NAME, 256);
+
+    private static final Map<String, CommandTemplate> templates = new LinkedHashMap<String, CommandTemplate>(16,
+                                                                                                           0.75f,
+                                                                                                           true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CommandTemplate> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Argument[] arguments;
+
+    private CommandTemplate(List<Argument> arguments) {
+        this.arguments = arguments.toArray(new Argument[arguments.size()]);
+    }
+
+    /**
+     * @throws CommandLine.SyntaxException if a quote is not closed
+     */
+    static CommandTemplate compile(String commandLine) {
+        synchronized (templates) {
+            CommandTemplate template = templates.get(commandLine);
+            if (template != null) {
+                return template;
+            }
+        }
+        CommandTemplate template = parse(commandLine);
+        synchronized (templates) {
+            templates.put(commandLine, template);
+        }
+        return template;
+    }
+
+    static CommandTemplate parse(String commandLine) {
+        return new CommandTemplate(CommandLine.tokenize(commandLine, true));
+    }
+
+    static CommandTemplate parse(String commandLine, boolean backslashEscapes) {
+        return new CommandTemplate(CommandLine.tokenize(commandLine, backslashEscapes, true));
+    }
+
+    /**
+     * Reads the slot whose {@code $} is at the given index into the argument, or only the {@code $} when no name
+     * follows it.
+     *
+     * @return the index following what was read
+     */
+    static int readSlot(String commandLine, int dollar, ArgumentBuilder argument) {
+        int nameStart = dollar + 1;
+        if (nameStart < commandLine.length() && commandLine.charAt(nameStart) == '{') {
+            int closingBrace = commandLine.indexOf('}', nameStart + 1);
+            if (closingBrace < 0) {
+                argument.append('$');
+                return nameStart;
+            }
+            if (closingBrace == nameStart + 1) {
+                // ${} is a literal
+                argument.append('$').append('{').append('}');
+            } else {
+                argument.slot(commandLine.substring(nameStart + 1, closingBrace), true);
+            }
+            return closingBrace + 1;
+        }
+        int nameEnd = nameStart;
+        while (nameEnd < commandLine.length() && isNamePart(commandLine.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (nameEnd == nameStart) {
+            // a lone $ is a literal
+            argument.append('$');
+        } else {
+            argument.slot(commandLine.substring(nameStart, nameEnd), false);
+        }
+        return nameEnd;
+    }
+
+    /**
+     * Fills the slots of the command line as text, to be split afterwards: the values are split into arguments and
+     * their quotes and backslashes are parsed. Escaped {@code $} are substituted too.
+     */
+    static String substitute(String commandLine, Map<String, ?> bindings) {
+        int dollar = commandLine.indexOf('$');
+        if (dollar < 0) {
+            return commandLine;
+        }
+        StringBuilder substituted = new StringBuilder(commandLine.length() + 64);
+        int start = 0;
+        while (dollar >= 0) {
+            substituted.append(commandLine, start, dollar);
+            ArgumentBuilder slot = new ArgumentBuilder();
+            start = readSlot(commandLine, dollar, slot);
+            substituted.append(slot.build().fill(bindings));
+            dollar = commandLine.indexOf('$', start);
+        }
+        return substituted.append(commandLine, start, commandLine.length()).toString();
+    }
+
+    private static boolean isNamePart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-';
+    }
+
+    String[] fill(Map<String, ?> bindings) {
+        List<String> filled = new ArrayList<>(arguments.length);
+        for (Argument argument : arguments) {
+            String value = argument.fill(bindings);
+            if (!value.isEmpty() || !argument.omittedIfEmpty) {
+                filled.add(value);
+            }
+        }
+        return filled.toArray(new String[filled.size()]);
+    }
+
+    /**
+     * An argument of the command line, its literal segments surround its slots.
+     */
+    static final class Argument {
+
+        private final String[] literals;
+
+        private final String[] names;
+
+        private final boolean[] braced;
+
+        private final int literalLength;
+
+        private final boolean omittedIfEmpty;
+
+        private Argument(List<String> literals, List<String> names, List<Boolean> braced, boolean omittedIfEmpty) {
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.names = names.toArray(new String[names.size()]);
+            this.braced = new boolean[braced.size()];
+            int length = 0;
+            for (int i = 0; i < this.braced.length; i++) {
+                this.braced[i] = braced.get(i);
+            }
+            for (String literal : literals) {
+                length += literal.length();
+            }
+            this.literalLength = length;
+            this.omittedIfEmpty = omittedIfEmpty;
+        }
+
+        String fill(Map<String, ?> bindings) {
+            if (names.length == 0) {
+                return literals[0];
+            }
+            StringBuilder argument = new StringBuilder(literalLength + 16 * names.length);
+            for (int i = 0; i < names.length; i++) {
+                argument.append(literals[i]);
+                if (braced[i]) {
+                    fillBraced(argument, names[i], bindings);
+                } else {
+                    fillLongestName(argument, names[i], bindings);
+                }
+            }
+            return argument.append(literals[names.length]).toString();
+        }
+
+        private static void fillBraced(StringBuilder argument, String name, Map<String, ?> bindings) {
+            if (bindings.containsKey(name)) {
+                argument.append(toEmptyStringIfNull(bindings.get(name)));
+            } else {
+                argument.append("${").append(name).append('}');
+            }
+        }
+
+        private static void fillLongestName(StringBuilder argument, String text, Map<String, ?> bindings) {
+            for (int end = text.length(); end > 0; end--) {
+                String name = end == text.length() ? text : text.substring(0, end);
+                if (bindings.containsKey(name)) {
+                    argument.append(toEmptyStringIfNull(bindings.get(name))).append(text, end, text.length());
+                    return;
+                }
+            }
+            argument.append('$').append(text);
+        }
+    }
+
+    /**
+     * Collects an argument while {@link CommandLine} reads it.
+     */
+    static final class ArgumentBuilder {
+
+        private final StringBuilder literal = new StringBuilder();
+
+        private final List<String> literals = new ArrayList<>();
+
+        private final List<String> names = new ArrayList<>();
+
+        private final List<Boolean> braced = new ArrayList<>();
+
+        private boolean quotedOrLiteral;
+
+        ArgumentBuilder append(char c) {
+            literal.append(c);
+            quotedOrLiteral = true;
+            return this;
+        }
+
+        void quoted() {
+            quotedOrLiteral = true;
+        }
+
+        void slot(String name, boolean isBraced) {
+            literals.add(literal.toString());
+            literal.setLength(0);
+            names.add(name);
+            braced.add(isBraced);
+        }
+
+        Argument build() {
+            literals.add(literal.toString());
+            return new Argument(literals, names, braced, !quotedOrLiteral);
+        }
+    }
+}
@@ -25,159 +25,293 @@
  */
 package jsr223.nativeshell.executable;
 
-import static jsr223.nativeshell.IOUtils.pipe;
 import static jsr223.nativeshell.StringUtils.toEmptyStringIfNull;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 
 import javax.script.*;
 
-import org.ow2.proactive.scheduler.common.SchedulerConstants;
 import org.ow2.proactive.utils.CookieBasedProcessTreeKiller;
 
+import jsr223.nativeshell.BaseEnvironment;
+import jsr223.nativeshell.FlushPolicy;
 import jsr223.nativeshell.IOUtils;
 import jsr223.nativeshell.NativeShellRunner;
 import jsr223.nativeshell.NativeShellScriptEngine;
+import jsr223.nativeshell.OutputRedirects;
+import jsr223.nativeshell.ProcessAdmission;
+import jsr223.nativeshell.ProcessGroupKiller;
+import jsr223.nativeshell.ProcessRegistry;
+import jsr223.nativeshell.ProcessWatchdog;
+import jsr223.nativeshell.ScriptInput;
+import jsr223.nativeshell.ScriptOptions;
+import jsr223.nativeshell.ScriptTimeoutException;
+import jsr223.nativeshell.SpillFiles;
+import jsr223.nativeshell.StreamPumps;
+import jsr223.nativeshell.StreamPumps.OutputPump;
+import jsr223.nativeshell.TailOutputCapture;
 
 
 public class ExecutableScriptEngine extends AbstractScriptEngine {
 
+    public static final String LITERAL_VALUES_NAME = "NATIVE_SHELL_LITERAL_VALUES";
+
     @Override
     public Object eval(String script, ScriptContext scriptContext) throws ScriptException {
         CookieBasedProcessTreeKiller processTreeKiller = null;
+        Process process = null;
+        ProcessGroupKiller processGroupKiller = null;
+        ProcessRegistry.Registration registration = null;
+        ProcessWatchdog watchdog = ProcessWatchdog.withoutTimeouts();
+        SpillFiles spillFiles = null;
         try {
-
-            String commandLineWithBindings = expandAndReplaceBindings(script, scriptContext);
-            ProcessBuilder processBuilder = new ProcessBuilder(CommandLine.translateCommandline(commandLineWithBindings));
-
-            Map<String, String> environment = processBuilder.environment();
-            for (Map.Entry<String, Object> binding : scriptContext.getBindings(ScriptContext.ENGINE_SCOPE).entrySet()) {
-                environment.put(binding.getKey(), toEmptyStringIfNull(binding.getValue()));
-            }
-            processTreeKiller = NativeShellRunner.createProcessTreeKiller(scriptContext, environment);
-
-            final Process process = processBuilder.start();
-            Thread input = writeProcessInput(process.getOutputStream(), scriptContext.getReader());
-            Thread output = readProcessOutput(process.getInputStream(), scriptContext.getWriter());
-            Thread error = readProcessOutput(process.getErrorStream(), scriptContext.getErrorWriter());
-
-            input.start();
-            output.start();
-            error.start();
+            watchdog = ProcessWatchdog.create(scriptContext);
+            FlushPolicy flushPolicy = FlushPolicy.create(scriptContext);
+            TailOutputCapture errorTail = TailOutputCapture.forError(scriptContext);
+            OutputRedirects redirects = OutputRedirects.create(scriptContext);
+            ScriptInput scriptInput = ScriptInput.create(scriptContext);
+            Bindings engineBindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+            Map<String, Object> bindings = OverlayBindings.flatten(engineBindings);
+            ProcessBuilder processBuilder = createProcess(script, bindings, scriptContext);
+            spillFiles = setEnvironment(processBuilder, bindings);
+            StreamPumps.mergeOutput(scriptContext, processBuilder);
+            redirects.apply(processBuilder, false, errorTail != null);
+            boolean inputRedirected = scriptInput.redirect(processBuilder);
+            boolean outputPiped = OutputRedirects.isOutputPiped(processBuilder);
+            boolean errorPiped = OutputRedirects.isErrorPiped(processBuilder);
+            processTreeKiller = NativeShellRunner.createProcessTreeKiller(scriptContext, processBuilder.environment());
+            boolean processGroupLeader = ProcessGroupKiller.startAsProcessGroupLeader(processBuilder);
+
+            process = startProcess(processBuilder);
+            processGroupKiller = ProcessGroupKiller.create(process, processGroupLeader, processTreeKiller);
+            registration = ProcessRegistry.register(process, processGroupKiller);
+            Future<?> input = pumpInput(process, scriptInput, inputRedirected);
+            OutputPump output = pumpOutput(process, outputPiped, scriptContext, flushPolicy);
+            OutputPump error = pumpError(process, errorPiped, scriptContext, errorTail, flushPolicy);
+            watchdog.start(process, processGroupKiller, output, error);
 
             process.waitFor();
-            output.join();
-            error.join();
-            input.interrupt();
-
-            int exitValue = process.exitValue();
-
-            if (scriptContext.getBindings(ScriptContext.ENGINE_SCOPE)
-                             .containsKey(SchedulerConstants.VARIABLES_BINDING_NAME)) {
-                Map<String, Serializable> variables = (Map<String, Serializable>) scriptContext.getBindings(ScriptContext.ENGINE_SCOPE)
-                                                                                               .get(SchedulerConstants.VARIABLES_BINDING_NAME);
-                variables.put(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME, exitValue);
-            }
-            scriptContext.getBindings(ScriptContext.ENGINE_SCOPE).put(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME,
-                                                                      exitValue);
-            if (exitValue != 0) {
-                throw new ScriptException("Command execution failed with exit code " + exitValue);
-            }
-
-            return exitValue;
+            output.processExited();
+            error.processExited();
+            output.completion().get();
+            error.completion().get();
+            input.cancel(true);
+
+            watchdog.finished();
+            watchdog.check(process.exitValue());
+            return toResult(process.exitValue(), scriptContext, errorTail);
+        } catch (ScriptTimeoutException e) {
+            NativeShellScriptEngine.setTimeout(scriptContext, e);
+            throw e;
         } catch (ScriptException e) {
             throw e;
         } catch (Exception e) {
             throw new ScriptException(e);
         } finally {
-            if (processTreeKiller != null) {
+            watchdog.finished();
+            if (process != null) {
+                ProcessAdmission.release();
+            }
+            if (registration != null) {
+                registration.unregister();
+            }
+            if (processGroupKiller != null) {
+                processGroupKiller.kill();
+            } else if (processTreeKiller != null) {
                 processTreeKiller.kill();
             }
+            if (spillFiles != null) {
+                spillFiles.delete();
+            }
         }
     }
 
-    private String expandAndReplaceBindings(String script, ScriptContext scriptContext) {
-        Bindings collectionBindings = createBindings();
-
-        for (Map.Entry<String, Object> binding : scriptContext.getBindings(ScriptContext.ENGINE_SCOPE).entrySet()) {
-            String bindingKey = binding.getKey();
-            Object bindingValue = binding.getValue();
-
-            if (bindingValue instanceof Object[]) {
-                addArrayBindingAsEnvironmentVariable(bindingKey, (Object[]) bindingValue, collectionBindings);
-            } else if (bindingValue instanceof Collection) {
-                addCollectionBindingAsEnvironmentVariable(bindingKey, (Collection) bindingValue, collectionBindings);
-            } else if (bindingValue instanceof Map) {
-                addMapBindingAsEnvironmentVariable(bindingKey, (Map<?, ?>) bindingValue, collectionBindings);
+    /**
+     * Runs the command without waiting for it. The returned future completes with what {@link #eval} would
+     * return, or with the exception it would throw. Cancelling it destroys the process tree of the command.
+     */
+    public CompletableFuture<Object> evalAsync(String script, final ScriptContext scriptContext)
+            throws ScriptException {
+        final CookieBasedProcessTreeKiller processTreeKiller;
+        final Process process;
+        final boolean processGroupLeader;
+        final boolean outputPiped;
+        final boolean errorPiped;
+        final SpillFiles spillFiles;
+        final ProcessWatchdog watchdog = ProcessWatchdog.create(scriptContext);
+        FlushPolicy flushPolicy = FlushPolicy.create(scriptContext);
+        final TailOutputCapture errorTail = TailOutputCapture.forError(scriptContext);
+        OutputRedirects redirects = OutputRedirects.create(scriptContext);
+        ScriptInput scriptInput = ScriptInput.create(scriptContext);
+        boolean inputRedirected;
+        try {
+            Bindings engineBindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+            Map<String, Object> bindings = OverlayBindings.flatten(engineBindings);
+            ProcessBuilder processBuilder = createProcess(script, bindings, scriptContext);
+            spillFiles = setEnvironment(processBuilder, bindings);
+            StreamPumps.mergeOutput(scriptContext, processBuilder);
+            redirects.apply(processBuilder, false, errorTail != null);
+            inputRedirected = scriptInput.redirect(processBuilder);
+            outputPiped = OutputRedirects.isOutputPiped(processBuilder);
+            errorPiped = OutputRedirects.isErrorPiped(processBuilder);
+            processTreeKiller = NativeShellRunner.createProcessTreeKiller(scriptContext, processBuilder.environment());
+            processGroupLeader = ProcessGroupKiller.startAsProcessGroupLeader(processBuilder);
+            try {
+                process = startProcess(processBuilder);
+            } catch (IOException e) {
+                if (processTreeKiller != null) {
+                    processTreeKiller.kill();
+                }
+                spillFiles.delete();
+                throw e;
             }
+        } catch (ScriptException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ScriptException(e);
         }
-
-        scriptContext.getBindings(ScriptContext.ENGINE_SCOPE).putAll(collectionBindings);
-
-        Set<Map.Entry<String, Object>> bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE).entrySet();
-
-        ArrayList<Map.Entry<String, Object>> sortedBindings = new ArrayList<Map.Entry<String, Object>>(bindings);
-        Collections.sort(sortedBindings, LONGER_KEY_FIRST);
-
-        for (Map.Entry<String, Object> binding : sortedBindings) {
-            String bindingKey = binding.getKey();
-            Object bindingValue = binding.getValue();
-
-            if (script.contains("$" + bindingKey)) {
-                script = script.replaceAll("\\$" + bindingKey, toEmptyStringIfNull(bindingValue));
+        ProcessGroupKiller processGroupKiller = null;
+        ProcessRegistry.Registration registration = null;
+        final CompletableFuture<Integer> exitValue;
+        try {
+            processGroupKiller = ProcessGroupKiller.create(process, processGroupLeader, processTreeKiller);
+            registration = ProcessRegistry.register(process, processGroupKiller);
+            Future<?> input = pumpInput(process, scriptInput, inputRedirected);
+            OutputPump output = pumpOutput(process, outputPiped, scriptContext, flushPolicy);
+            OutputPump error = pumpError(process, errorPiped, scriptContext, errorTail, flushPolicy);
+            watchdog.start(process, processGroupKiller, output, error);
+
+            exitValue = watchdog.guard(StreamPumps.whenDone(process, input, output, error));
+        } catch (RuntimeException | Error e) {
+            NativeShellRunner.abandon(process, watchdog, registration, processGroupKiller, processTreeKiller);
+            spillFiles.delete();
+            throw e;
+        }
+        final ProcessGroupKiller startedProcessGroupKiller = processGroupKiller;
+        final ProcessRegistry.Registration startedRegistration = registration;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        exitValue.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer exitValue, Throwable throwable) {
+                ProcessAdmission.release();
+                startedRegistration.unregister();
+                startedProcessGroupKiller.kill();
+                spillFiles.delete();
+                if (throwable instanceof ScriptTimeoutException) {
+                    NativeShellScriptEngine.setTimeout(scriptContext, (ScriptTimeoutException) throwable);
+                }
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                    return;
+                }
+                try {
+                    result.complete(toResult(exitValue, scriptContext, errorTail));
+                } catch (ScriptException e) {
+                    result.completeExceptionally(e);
+                }
             }
-            if (script.contains("${" + bindingKey + "}")) {
-                script = script.replaceAll("\\$\\{" + bindingKey + "\\}", toEmptyStringIfNull(bindingValue));
+        });
+        result.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object value, Throwable throwable) {
+                if (result.isCancelled()) {
+                    exitValue.cancel(true);
+                }
             }
-        }
-        return script;
+        });
+        return result;
     }
 
-    private void addMapBindingAsEnvironmentVariable(String bindingKey, Map<?, ?> bindingValue, Bindings bindings) {
-        for (Map.Entry<?, ?> entry : ((Map<?, ?>) bindingValue).entrySet()) {
-            bindings.put(bindingKey + "_" + entry.getKey(),
-                         (entry.getValue() == null ? "" : toEmptyStringIfNull(entry.getValue())));
+    private static Future<?> pumpInput(Process process, ScriptInput scriptInput, boolean inputRedirected) {
+        if (inputRedirected) {
+            return CompletableFuture.completedFuture(null);
         }
+        return scriptInput.pump(process, process.getOutputStream());
     }
 
-    private void addCollectionBindingAsEnvironmentVariable(String bindingKey, Collection bindingValue,
-            Bindings bindings) {
-        Object[] bindingValueAsArray = bindingValue.toArray();
-        addArrayBindingAsEnvironmentVariable(bindingKey, bindingValueAsArray, bindings);
+    private static OutputPump pumpOutput(Process process, boolean outputPiped, ScriptContext scriptContext,
+            FlushPolicy flushPolicy) {
+        if (!outputPiped) {
+            return StreamPumps.noOutput();
+        }
+        return StreamPumps.pumpOutput(process, process.getInputStream(), scriptContext.getWriter(), null, flushPolicy);
     }
 
-    private void addArrayBindingAsEnvironmentVariable(String bindingKey, Object[] bindingValue, Bindings bindings) {
-        for (int i = 0; i < bindingValue.length; i++) {
-            bindings.put(bindingKey + "_" + i, (bindingValue[i] == null ? "" : toEmptyStringIfNull(bindingValue[i])));
+    private static OutputPump pumpError(Process process, boolean errorPiped, ScriptContext scriptContext,
+            TailOutputCapture errorTail, FlushPolicy flushPolicy) {
+        if (!errorPiped) {
+            return StreamPumps.noOutput();
         }
+        return StreamPumps.pumpOutput(process,
+                                      process.getErrorStream(),
+                                      scriptContext.getErrorWriter(),
+                                      errorTail,
+                                      flushPolicy);
     }
 
-    private static Thread readProcessOutput(final InputStream processOutput, final Writer contextWriter) {
-        return new Thread(new Runnable() {
+    /**
+     * Starts the process once admitted by {@link ProcessAdmission}, which must be told when it exited.
+     */
+    private static Process startProcess(final ProcessBuilder processBuilder) throws IOException {
+        return ProcessAdmission.start(new ProcessAdmission.ProcessStarter() {
             @Override
-            public void run() {
-                try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(processOutput));
-                        BufferedWriter bufferedWriter = new BufferedWriter(contextWriter)) {
-                    pipe(bufferedReader, bufferedWriter, null);
-                } catch (Exception ignored) {
-                }
+            public Process start() throws IOException {
+                return processBuilder.start();
             }
         });
     }
 
-    private static Thread writeProcessInput(final OutputStream processOutput, final Reader contextWriter) {
-        return new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try (BufferedReader bufferedReader = new BufferedReader(contextWriter);
-                        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(processOutput)) {
-                    pipe(bufferedReader, outputStreamWriter, null);
-                } catch (Exception ignored) {
-
-                }
+    /**
+     * Splits the command line once its binding values are substituted, or with
+     * {@value #LITERAL_VALUES_NAME}, copies each value into its argument as it is.
+     */
+    private static ProcessBuilder createProcess(String script, Map<String, Object> bindings,
+            ScriptContext scriptContext) throws ScriptException {
+        try {
+            if (Boolean.parseBoolean(ScriptOptions.get(scriptContext, LITERAL_VALUES_NAME))) {
+                return new ProcessBuilder(CommandTemplate.compile(script).fill(bindings));
             }
-        });
+            try {
+                return new ProcessBuilder(CommandLine.translateCommandline(CommandTemplate.substitute(script,
+                                                                                                      bindings)));
+            } catch (CommandLine.SyntaxException e) {
+                // reported on the script itself, the substituted command line shows the values
+                CommandTemplate.compile(script);
+                throw new ScriptException("Unclosed quote in the binding values of: " + script);
+            }
+        } catch (CommandLine.SyntaxException e) {
+            throw new ScriptException(e.getMessage(), null, e.getLine(), e.getColumn());
+        }
+    }
+
+    /**
+     * Adds the bindings to the environment, the oversized ones are replaced by the path of their {@link SpillFiles}
+     * that must be deleted once the process exited.
+     */
+    private static SpillFiles setEnvironment(ProcessBuilder processBuilder, Map<String, Object> bindings)
+            throws IOException {
+        Map<String, String> environment = new HashMap<>();
+        for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+            environment.put(binding.getKey(), toEmptyStringIfNull(binding.getValue()));
+        }
+        SpillFiles spillFiles = SpillFiles.spill(environment, new ArrayList<String>(), processBuilder.command());
+        BaseEnvironment.apply(processBuilder, environment);
+        return spillFiles;
+    }
+
+    private Object toResult(int exitValue, ScriptContext scriptContext, TailOutputCapture errorTail)
+            throws ScriptException {
+        NativeShellScriptEngine.setExitValue(scriptContext, exitValue);
+        if (exitValue != 0) {
+            throw new ScriptException(TailOutputCapture.addErrorTail("Command execution failed with exit code " +
+                                                                     exitValue, errorTail));
+        }
+
+        return exitValue;
     }
 
     @Override
@@ -0,0 +1,159 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.executable;
+
+import static jsr223.nativeshell.StringUtils.toEmptyStringIfNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * The bindings of an evaluation seen with their arrays, collections and maps flattened into {@code NAME_index} and
+ * {@code NAME_key} entries. The flattened entries shadow the bindings of the same name in a read-only view, the
+ * bindings themselves are not changed, so that a context evaluated again does not accumulate them.
+ */
+final class OverlayBindings extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> bindings;
+
+    private final Map<String, Object> overlay;
+
+    private OverlayBindings(Map<String, Object> bindings, Map<String, Object> overlay) {
+        this.bindings = bindings;
+        this.overlay = overlay;
+    }
+
+    /**
+     * @return the bindings themselves when nothing needs flattening
+     */
+    static Map<String, Object> flatten(Map<String, Object> bindings) {
+        Map<String, Object> overlay = null;
+        for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+            Object bindingValue = binding.getValue();
+            if (bindingValue instanceof Object[] || bindingValue instanceof Collection ||
+                bindingValue instanceof Map) {
+                if (overlay == null) {
+                    overlay = new HashMap<>();
+                }
+                flatten(binding.getKey(), bindingValue, overlay);
+            }
+        }
+        return overlay != null ? new OverlayBindings(bindings, overlay) : bindings;
+    }
+
+    private static void flatten(String bindingKey, Object bindingValue, Map<String, Object> overlay) {
+        if (bindingValue instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) bindingValue).entrySet()) {
+                overlay.put(bindingKey + "_" + entry.getKey(), toEmptyStringIfNull(entry.getValue()));
+            }
+            return;
+        }
+        Object[] elements = bindingValue instanceof Collection ? ((Collection<?>) bindingValue).toArray()
+                                                               : (Object[]) bindingValue;
+        for (int i = 0; i < elements.length; i++) {
+            overlay.put(bindingKey + "_" + i, toEmptyStringIfNull(elements[i]));
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return overlay.containsKey(key) || bindings.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return overlay.containsKey(key) ? overlay.get(key) : bindings.get(key);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                int size = overlay.size();
+                for (String key : bindings.keySet()) {
+                    if (!overlay.containsKey(key)) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * The flattened entries, then the bindings they do not shadow.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+        private final Iterator<Map.Entry<String, Object>> overlayEntries = overlay.entrySet().iterator();
+
+        private final Iterator<Map.Entry<String, Object>> bindingEntries = bindings.entrySet().iterator();
+
+        private Map.Entry<String, Object> next;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (overlayEntries.hasNext()) {
+                next = overlayEntries.next();
+                return true;
+            }
+            while (bindingEntries.hasNext()) {
+                Map.Entry<String, Object> binding = bindingEntries.next();
+                if (!overlay.containsKey(binding.getKey())) {
+                    next = binding;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Object> entry = next;
+            next = null;
+            return new SimpleImmutableEntry<>(entry);
+        }
+    }
+}
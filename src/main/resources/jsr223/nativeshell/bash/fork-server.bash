@@ -0,0 +1,53 @@
+# Resident bash used by jsr223.nativeshell.bash.BashForkServer, it runs one script at a time.
+#
+# Requests are read from stdin, one field per line, values escaped for printf %b: RUN, then the
+# working directory and the counted lists of arguments and of exported NAME=VALUE pairs.
+# Replies are written to stdout: READY <directory>, PID <pid> and EXIT <status>.
+# The command is executed by a forked subshell whose stdin, stdout and stderr are the in, out and err
+# fifos of the directory, the JVM opens them in that order. On SIGTERM, the signal named in the
+# signal file of the directory is sent to the command.
+
+directory=$(mktemp -d "${TMPDIR:-/tmp}/jsr223nativeshell-forkserver-XXXXXX") || exit 1
+trap 'rm -rf "$directory"' EXIT
+mkfifo "$directory/in" "$directory/out" "$directory/err" || exit 1
+trap '[[ -z "$child" ]] || { read -r signal < "$directory/signal"; kill -s "${signal:-TERM}" "$child" 2> /dev/null; }' TERM
+echo "READY $directory"
+
+decode() {
+    local line
+    IFS= read -r line
+    printf -v "$1" '%b' "$line"
+}
+
+decode_all() {
+    local count value i
+    read -r count
+    eval "$1=()"
+    for ((i = 0; i < count; i++)); do
+        decode value
+        eval "$1+=(\"\$value\")"
+    done
+}
+
+while read -r request; do
+    [[ "$request" == RUN ]] || continue
+    decode workdir
+    decode_all arguments
+    decode_all exports
+    (
+        [[ -z "$workdir" ]] || cd "$workdir" || exit 1
+        for assignment in "${exports[@]}"; do export "$assignment" 2> /dev/null; done
+        # a new bash, rather than the subshell itself, gives the script its own $$, $0 and environment
+        exec "${arguments[@]}"
+    ) < "$directory/in" > "$directory/out" 2> "$directory/err" &
+    child=$!
+    echo "PID $child"
+    # wait returns early when the TERM trap runs
+    while true; do
+        wait "$child"
+        kill -0 "$child" 2> /dev/null || break
+    done
+    wait "$child"
+    echo "EXIT $?"
+    child=
+done
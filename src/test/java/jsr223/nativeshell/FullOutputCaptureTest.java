@@ -0,0 +1,101 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class FullOutputCaptureTest {
+
+    @After
+    public void clearProperties() {
+        System.clearProperty(FullOutputCapture.MEMORY_THRESHOLD_PROPERTY_NAME);
+    }
+
+    @Test
+    public void small_output_is_a_byte_array() throws Exception {
+        byte[] output = randomBytes(5000);
+        FullOutputCapture capture = new FullOutputCapture();
+
+        for (int i = 0; i < output.length; i += 7) {
+            capture.write(output, i, Math.min(7, output.length - i));
+        }
+
+        assertFalse(capture.isSpilled());
+        assertEquals(output.length, capture.size());
+        assertArrayEquals(output, (byte[]) capture.getResult());
+    }
+
+    @Test
+    public void large_output_is_a_file() throws Exception {
+        System.setProperty(FullOutputCapture.MEMORY_THRESHOLD_PROPERTY_NAME, "4096");
+        byte[] output = randomBytes(100000);
+        FullOutputCapture capture = new FullOutputCapture();
+
+        capture.write(output, 0, 3000);
+        capture.write(output, 3000, output.length - 3000);
+
+        assertTrue(capture.isSpilled());
+        File file = (File) capture.getResult();
+        try {
+            assertArrayEquals(output, Files.readAllBytes(file.toPath()));
+            if (File.separatorChar == '/') {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void discarded_output_file_is_deleted() throws Exception {
+        System.setProperty(FullOutputCapture.MEMORY_THRESHOLD_PROPERTY_NAME, "10");
+        FullOutputCapture capture = new FullOutputCapture();
+        capture.write(randomBytes(100), 0, 100);
+        File file = (File) capture.getResult();
+
+        capture.discard();
+
+        assertFalse(file.exists());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
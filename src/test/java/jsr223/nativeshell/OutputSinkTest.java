@@ -0,0 +1,167 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import org.junit.Test;
+import org.ow2.proactive.scheduler.common.SchedulerConstants;
+
+
+public class OutputSinkTest {
+
+    private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+    @Test
+    public void characters_split_between_writes_are_decoded() throws Exception {
+        byte[] bytes = "\u00e9t\u00e9".getBytes(UTF_8);
+        StringWriter writer = new StringWriter();
+        FullOutputCapture captureOutput = new FullOutputCapture();
+        OutputSink sink = new OutputSink(writer, captureOutput, UTF_8, FlushPolicy.line());
+
+        for (byte b : bytes) {
+            sink.write(new byte[] { b }, 1);
+        }
+        sink.close();
+
+        assertEquals("\u00e9t\u00e9", writer.toString());
+        assertArrayEquals(bytes, (byte[]) captureOutput.getResult());
+    }
+
+    @Test
+    public void bytes_are_given_as_they_are_to_a_byte_writer() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ByteWriter writer = new ByteWriter(stream, UTF_8);
+        byte[] invalid = new byte[] { 'a', (byte) 0xff, 'b' };
+        OutputSink sink = new OutputSink(writer, null, UTF_8, FlushPolicy.line());
+
+        writer.write("before ");
+        sink.write(invalid, invalid.length);
+        sink.close();
+
+        byte[] written = stream.toByteArray();
+        assertEquals("before a", new String(written, 0, 8, UTF_8));
+        assertEquals((byte) 0xff, written[8]);
+        assertEquals('b', written[9]);
+    }
+
+    @Test
+    public void output_is_decoded_for_a_byte_writer_of_another_charset() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ByteWriter writer = new ByteWriter(stream, StandardCharsets.ISO_8859_1);
+        OutputSink sink = new OutputSink(writer, null, UTF_8, FlushPolicy.line());
+
+        byte[] bytes = "\u00e9".getBytes(UTF_8);
+        sink.write(bytes, bytes.length);
+        sink.close();
+
+        assertEquals("\u00e9", new String(stream.toByteArray(), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void line_policy_flushes_lines_and_pauses() throws Exception {
+        CountingWriter writer = new CountingWriter();
+        OutputSink sink = new OutputSink(writer, null, UTF_8, FlushPolicy.line());
+
+        write(sink, "no line end");
+        assertEquals(0, writer.flushes);
+        sink.idle();
+        assertEquals(1, writer.flushes);
+        write(sink, "a line\n");
+        assertEquals(2, writer.flushes);
+    }
+
+    @Test
+    public void interval_policy_flushes_past_its_bytes() throws Exception {
+        CountingWriter writer = new CountingWriter();
+        FlushPolicy flushPolicy = flushPolicy(FlushPolicy.FLUSH_NAME, "interval",
+                                              FlushPolicy.FLUSH_INTERVAL_NAME, "60000",
+                                              FlushPolicy.FLUSH_BYTES_NAME, "10");
+        OutputSink sink = new OutputSink(writer, null, UTF_8, flushPolicy);
+
+        write(sink, "12345\n");
+        sink.idle();
+        assertEquals(0, writer.flushes);
+        write(sink, "67890\n");
+        assertEquals(1, writer.flushes);
+    }
+
+    @Test
+    public void throughput_policy_only_flushes_when_closed() throws Exception {
+        CountingWriter writer = new CountingWriter();
+        OutputSink sink = new OutputSink(writer, null, UTF_8, flushPolicy(FlushPolicy.FLUSH_NAME, "throughput"));
+
+        write(sink, "a line\n");
+        sink.idle();
+        assertEquals(0, writer.flushes);
+        sink.close();
+        assertEquals("a line\n", writer.toString());
+    }
+
+    @Test(expected = ScriptException.class)
+    public void unknown_flush_policy() throws Exception {
+        flushPolicy(FlushPolicy.FLUSH_NAME, "sometimes");
+    }
+
+    private static FlushPolicy flushPolicy(String... genericInfo) throws ScriptException {
+        Map<String, String> genericInfoMap = new HashMap<>();
+        for (int i = 0; i < genericInfo.length; i += 2) {
+            genericInfoMap.put(genericInfo[i], genericInfo[i + 1]);
+        }
+        ScriptContext scriptContext = new SimpleScriptContext();
+        scriptContext.setAttribute(SchedulerConstants.GENERIC_INFO_BINDING_NAME,
+                                   genericInfoMap,
+                                   ScriptContext.ENGINE_SCOPE);
+        return FlushPolicy.create(scriptContext);
+    }
+
+    private static void write(OutputSink sink, String output) throws Exception {
+        byte[] bytes = output.getBytes(UTF_8);
+        sink.write(bytes, bytes.length);
+    }
+
+    private static class CountingWriter extends StringWriter {
+
+        private int flushes;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import jsr223.nativeshell.bash.Bash;
+
+
+public class ProcessAdmissionTest {
+
+    @Test
+    public void transient_start_failures_are_retried() throws Exception {
+        final Process process = new ProcessBuilder("true").start();
+        ProcessAdmission.Statistics before = ProcessAdmission.getStatistics();
+
+        Process started = ProcessAdmission.start(new ProcessAdmission.ProcessStarter() {
+            private int attempts;
+
+            @Override
+            public Process start() throws IOException {
+                if (attempts++ < 2) {
+                    throw new IOException("Cannot run program \"true\": error=11, Resource temporarily unavailable");
+                }
+                return process;
+            }
+        });
+        ProcessAdmission.release();
+
+        assertSame(process, started);
+        assertEquals(2, ProcessAdmission.getStatistics().getRetriedStarts() - before.getRetriedStarts());
+        assertEquals(1, ProcessAdmission.getStatistics().getStartedProcesses() - before.getStartedProcesses());
+    }
+
+    @Test
+    public void other_start_failures_are_not_retried() throws Exception {
+        ProcessAdmission.Statistics before = ProcessAdmission.getStatistics();
+        try {
+            ProcessAdmission.start(new ProcessAdmission.ProcessStarter() {
+                @Override
+                public Process start() throws IOException {
+                    throw new IOException("Cannot run program \"missing\": error=2, No such file or directory");
+                }
+            });
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(before.getRetriedStarts(), ProcessAdmission.getStatistics().getRetriedStarts());
+        assertEquals(1, ProcessAdmission.getStatistics().getFailedStarts() - before.getFailedStarts());
+    }
+
+    @Test
+    public void failed_asynchronous_setup_releases_the_process() throws Exception {
+        assumeTrue(File.separatorChar == '/');
+        NativeShellScriptEngine scriptEngine = new NativeShellScriptEngine(new Bash());
+        scriptEngine.getContext().setWriter(new StringWriter());
+        scriptEngine.getContext().setErrorWriter(new StringWriter());
+        scriptEngine.put(ScriptInput.INPUT_NAME, new ScriptInput() {
+            @Override
+            StreamPumps.InputWriter writer(Process process) {
+                throw new IllegalStateException("broken input");
+            }
+        });
+        ProcessAdmission.Statistics before = ProcessAdmission.getStatistics();
+        try {
+            scriptEngine.evalAsync("sleep 30", scriptEngine.getContext());
+            fail("Expected the setup to fail");
+        } catch (Exception expected) {
+        }
+
+        assertEquals(1, ProcessAdmission.getStatistics().getStartedProcesses() - before.getStartedProcesses());
+        assertEquals(before.getLiveProcesses(), ProcessAdmission.getStatistics().getLiveProcesses());
+    }
+}
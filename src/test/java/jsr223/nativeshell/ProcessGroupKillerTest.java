@@ -0,0 +1,82 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jsr223.nativeshell.bash.Bash;
+
+
+public class ProcessGroupKillerTest {
+
+    @Before
+    public void enableProcessGroupKill() {
+        System.setProperty(ProcessGroupKiller.ENABLE_PROCESS_GROUP_KILL_PROPERTY_NAME, "true");
+        assumeTrue(ProcessGroupKiller.isEnabled());
+    }
+
+    @After
+    public void disableProcessGroupKill() {
+        System.clearProperty(ProcessGroupKiller.ENABLE_PROCESS_GROUP_KILL_PROPERTY_NAME);
+    }
+
+    @Test
+    public void background_processes_are_killed_with_the_group() throws Exception {
+        NativeShellScriptEngine scriptEngine = new NativeShellScriptEngine(new Bash());
+        StringWriter scriptOutput = new StringWriter();
+        scriptEngine.getContext().setWriter(scriptOutput);
+
+        scriptEngine.eval("sleep 30 > /dev/null 2>&1 & echo $!");
+
+        File backgroundProcess = new File("/proc/" + scriptOutput.toString().trim());
+        for (int i = 0; i < 50 && backgroundProcess.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(backgroundProcess.exists());
+    }
+
+    @Test
+    public void empty_group_is_not_signalled() throws Exception {
+        assumeTrue(new File("/proc").isDirectory());
+        NativeShellScriptEngine scriptEngine = new NativeShellScriptEngine(new Bash());
+        scriptEngine.getContext().setWriter(new StringWriter());
+        scriptEngine.getContext().setErrorWriter(new StringWriter());
+
+        long startedBefore = ProcessAdmission.getStatistics().getStartedProcesses();
+        scriptEngine.eval("true");
+
+        assertEquals(1, ProcessAdmission.getStatistics().getStartedProcesses() - startedBefore);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Test;
+
+import jsr223.nativeshell.ScriptFileCache.ScriptFile;
+
+
+public class ScriptFileCacheTest {
+
+    @After
+    public void clearProperties() {
+        System.clearProperty(ScriptFileCache.MAX_FILES_PROPERTY_NAME);
+    }
+
+    @Test
+    public void same_script_shares_its_file() throws Exception {
+        ScriptFile first = ScriptFileCache.acquire("echo shared", ".sh");
+        ScriptFile second = ScriptFileCache.acquire("echo shared", ".sh");
+        ScriptFile otherExtension = ScriptFileCache.acquire("echo shared", ".bat");
+
+        assertEquals(first.getFile(), second.getFile());
+        assertNotEquals(first.getFile(), otherExtension.getFile());
+        assertEquals("echo shared" + System.lineSeparator(),
+                     new String(Files.readAllBytes(first.getFile().toPath())));
+        first.release();
+        second.release();
+        otherExtension.release();
+    }
+
+    @Test
+    public void least_recently_used_files_are_deleted_once_released() throws Exception {
+        System.setProperty(ScriptFileCache.MAX_FILES_PROPERTY_NAME, "1");
+        ScriptFile first = ScriptFileCache.acquire("echo first", ".sh");
+        ScriptFile second = ScriptFileCache.acquire("echo second", ".sh");
+
+        assertTrue(first.getFile().exists());
+        first.release();
+        assertFalse(first.getFile().exists());
+        assertTrue(second.getFile().exists());
+        second.release();
+    }
+
+    @Test
+    public void only_unlocked_directories_are_swept() throws Exception {
+        File baseDirectory = Files.createTempDirectory("sweep").toFile();
+        File orphanDirectory = new File(baseDirectory, "jsr223nativeshell-cache-orphan");
+        orphanDirectory.mkdir();
+        new File(orphanDirectory, "lock").createNewFile();
+        new File(orphanDirectory, "jsr223nativeshell-script.sh").createNewFile();
+        File liveDirectory = new File(baseDirectory, "jsr223nativeshell-cache-live");
+        liveDirectory.mkdir();
+        File liveFile = new File(liveDirectory, "jsr223nativeshell-result-1");
+        liveFile.createNewFile();
+        liveFile.setLastModified(0);
+        File oldFile = new File(baseDirectory, "jsr223nativeshell-123.sh");
+        oldFile.createNewFile();
+        oldFile.setLastModified(0);
+
+        try (FileChannel lockChannel = FileChannel.open(new File(liveDirectory, "lock").toPath(),
+                                                        StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE)) {
+            lockChannel.lock();
+            ScriptFileCache.sweepOrphans(baseDirectory);
+        }
+
+        assertFalse(orphanDirectory.exists());
+        assertTrue(liveFile.exists());
+        // files out of the directories of the JVMs might still be in use
+        assertTrue(oldFile.exists());
+        liveFile.delete();
+        new File(liveDirectory, "lock").delete();
+        liveDirectory.delete();
+        oldFile.delete();
+        baseDirectory.delete();
+    }
+
+    @Test
+    public void private_files_are_owner_only() throws Exception {
+        assumeTrue(File.separatorChar == '/');
+        File privateFile = ScriptFileCache.createPrivateFile("jsr223nativeshell-test-");
+
+        assertEquals("rw-------",
+                     PosixFilePermissions.toString(Files.getPosixFilePermissions(privateFile.toPath())));
+        privateFile.delete();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+public class TailOutputCaptureTest {
+
+    @Test
+    public void last_bytes_are_kept() throws Exception {
+        TailOutputCapture capture = new TailOutputCapture(8, 0);
+
+        write(capture, "0123456789");
+        write(capture, "abc");
+        write(capture, "de");
+
+        assertEquals("789abcde", new String(capture.getTail()));
+        assertEquals(15, capture.getTotalBytes());
+    }
+
+    @Test
+    public void write_larger_than_the_buffer() throws Exception {
+        TailOutputCapture capture = new TailOutputCapture(4, 0);
+
+        write(capture, "ab");
+        write(capture, "0123456789");
+
+        assertEquals("6789", new String(capture.getTail()));
+    }
+
+    @Test
+    public void last_lines_are_kept() throws Exception {
+        TailOutputCapture capture = new TailOutputCapture(1024, 2);
+
+        for (int i = 1; i <= 100; i++) {
+            write(capture, "line " + i + "\n");
+        }
+
+        assertEquals("line 99\nline 100\n", new String(capture.getTail()));
+        assertEquals(100, capture.getTotalLines());
+    }
+
+    @Test
+    public void last_line_without_line_end_is_counted() throws Exception {
+        TailOutputCapture capture = new TailOutputCapture(1024, 1);
+
+        write(capture, "first\nsecond");
+
+        assertEquals("second", new String(capture.getTail()));
+        assertEquals(2, capture.getTotalLines());
+    }
+
+    private static void write(TailOutputCapture capture, String output) {
+        byte[] bytes = output.getBytes();
+        capture.write(bytes, 0, bytes.length);
+    }
+}
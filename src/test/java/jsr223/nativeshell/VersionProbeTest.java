@@ -0,0 +1,112 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jsr223.nativeshell.bash.Bash;
+
+
+public class VersionProbeTest {
+
+    private File cacheFile;
+
+    @Before
+    public void enableVersionCheck() throws Exception {
+        assumeTrue(File.separatorChar == '/');
+        cacheFile = File.createTempFile("versions", ".properties");
+        cacheFile.delete();
+        System.setProperty(VersionProbe.CACHE_FILE_PROPERTY_NAME, cacheFile.getAbsolutePath());
+        System.setProperty(NativeShellScriptEngine.ENABLE_VERSION_PROPERTY_NAME, "true");
+    }
+
+    @After
+    public void clearProperties() {
+        System.clearProperty(VersionProbe.CACHE_FILE_PROPERTY_NAME);
+        System.clearProperty(NativeShellScriptEngine.ENABLE_VERSION_PROPERTY_NAME);
+        if (cacheFile != null) {
+            cacheFile.delete();
+        }
+    }
+
+    @Test
+    public void versions_are_probed_and_cached_on_disk() throws Exception {
+        VersionProbe probe = new VersionProbe(new Bash());
+
+        String majorVersion = probe.getMajorVersion();
+
+        assertTrue(majorVersion, majorVersion.matches("[0-9]+"));
+        assertTrue(probe.getInstalledVersion(), probe.getInstalledVersion().startsWith(majorVersion + "."));
+        String cache = new String(Files.readAllBytes(cacheFile.toPath()));
+        assertTrue(cache, cache.contains(".major=" + majorVersion));
+    }
+
+    @Test
+    public void cached_versions_are_not_probed_again() throws Exception {
+        VersionProbe first = new VersionProbe(new Bash());
+        first.getMajorVersion();
+        String cache = new String(Files.readAllBytes(cacheFile.toPath()));
+        Files.write(cacheFile.toPath(), cache.replaceAll("\\.major=.*", ".major=cached").getBytes());
+
+        VersionProbe second = new VersionProbe(new Bash());
+        assertEquals("cached", second.getMajorVersion());
+        assertNull(second.getRefresh());
+    }
+
+    @Test
+    public void cache_writable_by_others_is_ignored() throws Exception {
+        VersionProbe first = new VersionProbe(new Bash());
+        first.getMajorVersion();
+        String cache = new String(Files.readAllBytes(cacheFile.toPath()));
+        Files.write(cacheFile.toPath(), cache.replaceAll("\\.major=.*", ".major=spoofed").getBytes());
+        Files.setPosixFilePermissions(cacheFile.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+
+        VersionProbe second = new VersionProbe(new Bash());
+        assertEquals(first.getMajorVersion(), second.getMajorVersion());
+        assertNotNull(second.getRefresh());
+    }
+
+    @Test
+    public void nothing_is_probed_when_the_check_is_disabled() throws Exception {
+        System.clearProperty(NativeShellScriptEngine.ENABLE_VERSION_PROPERTY_NAME);
+
+        assertEquals(NativeShellScriptEngine.DEFAULT_VERSION, new VersionProbe(new Bash()).getInstalledVersion());
+        assertFalse(cacheFile.exists());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.bash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptContext;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ow2.proactive.scripting.Script;
+
+import jsr223.nativeshell.NativeShellScriptEngine;
+
+
+public class BashBatchTest {
+
+    @BeforeClass
+    public static void runOnlyOnLinux() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+    }
+
+    @Test
+    public void evaluate_scripts_with_their_own_exit_values_and_output() throws Exception {
+        List<ScriptContext> contexts = Arrays.asList(createContext(), createContext(), createContext());
+
+        List<Integer> exitValues = BashBatch.eval(Arrays.asList("echo first; echo error >&2",
+                                                                "printf 'no new line'; exit 42",
+                                                                "echo 'syntax error"),
+                                                  contexts);
+
+        assertEquals(Arrays.asList(0, 42, 2), exitValues);
+        assertEquals("first\n", contexts.get(0).getWriter().toString());
+        assertEquals("error\n", contexts.get(0).getErrorWriter().toString());
+        assertEquals("no new line", contexts.get(1).getWriter().toString());
+        assertEquals("", contexts.get(1).getErrorWriter().toString());
+        assertEquals(42, contexts.get(1).getAttribute(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
+    }
+
+    @Test
+    public void scripts_do_not_share_bindings_or_state() throws Exception {
+        ScriptContext first = createContext();
+        first.setAttribute("name", "it's me", ScriptContext.ENGINE_SCOPE);
+        first.setAttribute(Script.ARGUMENTS_NAME, new String[] { "an argument" }, ScriptContext.ENGINE_SCOPE);
+        ScriptContext second = createContext();
+
+        BashBatch.eval(Arrays.asList("echo \"$name\" \"$1\"; cd /; shared=1",
+                                     "echo \"${name:-unset}\" $# \"${shared:-unset}\""),
+                       Arrays.asList(first, second));
+
+        assertEquals("it's me an argument\n", first.getWriter().toString());
+        assertEquals("unset 0 unset\n", second.getWriter().toString());
+    }
+
+    @Test
+    public void binding_values_are_not_in_the_command_line_of_the_batch() throws Exception {
+        ScriptContext context = createContext();
+        context.setAttribute("password", "s3cr3t", ScriptContext.ENGINE_SCOPE);
+
+        // $$ is the batch process, the pattern is written so that the script does not match itself
+        BashBatch.eval(Arrays.asList("tr '\\0' '\\n' < /proc/$$/cmdline | grep -c 's3c[r]3t'; echo \"$password\""),
+                       Arrays.asList(context));
+
+        assertEquals("0\ns3cr3t\n", context.getWriter().toString());
+    }
+
+    @Test
+    public void long_lines_do_not_hide_the_boundaries() throws Exception {
+        List<ScriptContext> contexts = Arrays.asList(createContext(), createContext());
+
+        List<Integer> exitValues = BashBatch.eval(Arrays.asList("head -c 100000 /dev/zero | tr '\\0' x; exit 3",
+                                                                "echo second"),
+                                                  contexts);
+
+        assertEquals(Arrays.asList(3, 0), exitValues);
+        assertEquals(100000, contexts.get(0).getWriter().toString().length());
+        assertEquals("second\n", contexts.get(1).getWriter().toString());
+    }
+
+    @Test
+    public void cancelling_the_batch_kills_its_process() throws Exception {
+        ScriptContext context = createContext();
+
+        CompletableFuture<List<Integer>> exitValues = BashBatch.evalAsync(Arrays.asList("echo $$; sleep 30"),
+                                                                          Arrays.asList(context));
+        for (int i = 0; i < 100 && context.getWriter().toString().isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        File batchProcess = new File("/proc/" + context.getWriter().toString().trim());
+        assertTrue(batchProcess.exists());
+        exitValues.cancel(true);
+
+        for (int i = 0; i < 100 && batchProcess.exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(batchProcess.exists());
+    }
+
+    @Test
+    public void submitted_scripts_are_coalesced() throws Exception {
+        BashBatch batch = new BashBatch(50);
+        List<ScriptContext> contexts = new ArrayList<>();
+        List<CompletableFuture<Integer>> exitValues = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ScriptContext context = createContext();
+            contexts.add(context);
+            exitValues.add(batch.submit("echo " + i + "; exit " + i, context));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), exitValues.get(i).get(10, TimeUnit.SECONDS));
+            assertEquals(i + "\n", contexts.get(i).getWriter().toString());
+        }
+    }
+
+    private static ScriptContext createContext() {
+        ScriptContext context = new SimpleScriptContext();
+        context.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+        context.setWriter(new StringWriter());
+        context.setErrorWriter(new StringWriter());
+        return context;
+    }
+}
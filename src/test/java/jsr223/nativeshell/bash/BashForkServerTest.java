@@ -0,0 +1,180 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.bash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.script.ScriptException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ow2.proactive.scripting.Script;
+
+import jsr223.nativeshell.NativeShellRunner;
+import jsr223.nativeshell.NativeShellScriptEngine;
+
+
+public class BashForkServerTest {
+
+    private NativeShellScriptEngine scriptEngine;
+
+    private StringWriter scriptOutput;
+
+    private StringWriter scriptError;
+
+    @BeforeClass
+    public static void runOnlyOnLinux() {
+        assumeTrue(System.getProperty("os.name").contains("Linux"));
+    }
+
+    @Before
+    public void setup() {
+        System.setProperty(BashForkServer.ENABLE_FORK_SERVER_PROPERTY_NAME, "true");
+        scriptEngine = new NativeShellScriptEngine(new Bash());
+        scriptOutput = new StringWriter();
+        scriptEngine.getContext().setWriter(scriptOutput);
+        scriptError = new StringWriter();
+        scriptEngine.getContext().setErrorWriter(scriptError);
+    }
+
+    @After
+    public void disableForkServer() {
+        System.clearProperty(BashForkServer.ENABLE_FORK_SERVER_PROPERTY_NAME);
+    }
+
+    @Test
+    public void evaluate_echo_command() throws Exception {
+        Integer returnCode = (Integer) scriptEngine.eval("echo hello; echo error >&2");
+
+        assertEquals(NativeShellRunner.RETURN_CODE_OK, returnCode);
+        assertEquals("hello\n", scriptOutput.toString());
+        assertEquals("error\n", scriptError.toString());
+    }
+
+    @Test
+    public void evaluate_failing_command() throws Exception {
+        try {
+            scriptEngine.eval("exit 42");
+            fail("Expected a ScriptException");
+        } catch (ScriptException e) {
+            assertEquals(42, scriptEngine.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
+        }
+    }
+
+    @Test
+    public void evaluate_use_bindings_and_arguments() throws Exception {
+        scriptEngine.put("string", "a\\String\nwith lines");
+        scriptEngine.put(Script.ARGUMENTS_NAME, new String[] { "first", "second argument" });
+
+        scriptEngine.eval("echo \"$string\"; echo $#; echo \"$2\"");
+
+        assertEquals("a\\String\nwith lines\n2\nsecond argument\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void bindings_that_are_not_shell_identifiers_are_exported() throws Exception {
+        scriptEngine.put("my.name", "value");
+
+        scriptEngine.eval("env | grep '^my.name='");
+
+        assertEquals("my.name=value\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void scripts_have_their_own_process_id() throws Exception {
+        scriptEngine.eval("echo $$ $BASHPID");
+        scriptEngine.eval("echo $$");
+
+        String[] lines = scriptOutput.toString().split("\n");
+        String[] first = lines[0].split(" ");
+        assertEquals(first[0], first[1]);
+        assertNotEquals(first[0], lines[1]);
+    }
+
+    @Test
+    public void killing_the_script_process_keeps_the_server() throws Exception {
+        scriptEngine.eval("echo $PPID");
+        try {
+            scriptEngine.eval("kill $$");
+            fail("Expected a ScriptException");
+        } catch (ScriptException e) {
+            assertEquals(143, scriptEngine.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
+        }
+        scriptEngine.eval("echo $PPID");
+
+        String[] servers = scriptOutput.toString().split("\n");
+        assertEquals(servers[0], servers[1]);
+    }
+
+    @Test
+    public void bindings_are_in_the_environment_of_the_script_process() throws Exception {
+        scriptEngine.put("name", "value");
+
+        scriptEngine.eval("tr '\\0' '\\n' < /proc/$$/environ | grep '^name='");
+
+        assertEquals("name=value\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void reading_input() throws Exception {
+        scriptEngine.getContext().setReader(new StringReader("hello\n"));
+
+        scriptEngine.eval("cat");
+
+        assertEquals("hello\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void evaluate_repeatedly() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            scriptEngine.eval("echo " + i);
+        }
+
+        assertTrue(scriptOutput.toString().endsWith("18\n19\n"));
+    }
+
+    @Test
+    public void evaluate_large_script_reading_input() throws Exception {
+        StringBuilder largeScript = new StringBuilder("cat\n");
+        while (largeScript.length() < 2 * Bash.getInlineScriptMaxLength()) {
+            largeScript.append("# padding\n");
+        }
+        scriptEngine.getContext().setReader(new StringReader("hello\n"));
+
+        scriptEngine.eval(largeScript.toString());
+
+        assertEquals("hello\n", scriptOutput.toString());
+    }
+}
@@ -27,12 +27,33 @@ package jsr223.nativeshell.bash;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.*;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
+import java.io.File;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Reader;
+import java.io.Serializable;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.script.*;
 
@@ -40,9 +61,20 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.ow2.proactive.scheduler.common.SchedulerConstants;
+import org.ow2.proactive.scripting.Script;
 
+import jsr223.nativeshell.LineSubscriber;
 import jsr223.nativeshell.NativeShellRunner;
 import jsr223.nativeshell.NativeShellScriptEngine;
+import jsr223.nativeshell.OutputRedirects;
+import jsr223.nativeshell.OutputSubscriber;
+import jsr223.nativeshell.ProcessWatchdog;
+import jsr223.nativeshell.ResultChannel;
+import jsr223.nativeshell.ScriptInput;
+import jsr223.nativeshell.ScriptTimeoutException;
+import jsr223.nativeshell.StreamPumps;
+import jsr223.nativeshell.TailOutputCapture;
 
 
 public class BashScriptEngineTest {
@@ -160,6 +192,18 @@ public class BashScriptEngineTest {
         assertEquals("\n", scriptOutput.toString());
     }
 
+    @Test
+    public void bindings_override_the_inherited_environment() throws Exception {
+        assumeTrue(System.getenv("PATH") != null);
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put("PATH", System.getenv("PATH"));
+        bindings.put("HOME", "/overridden");
+
+        scriptEngine.eval("echo \"$HOME\"; test \"$PATH\" = \"" + System.getenv("PATH") + "\" && echo same", bindings);
+
+        assertEquals("/overridden\nsame\n", scriptOutput.toString());
+    }
+
     @Test
     public void reading_input() throws Exception {
         StringReader stringInput = new StringReader("hello\n");
@@ -168,6 +212,131 @@ public class BashScriptEngineTest {
         assertEquals(NativeShellRunner.RETURN_CODE_OK, scriptEngine.eval("cat"));
     }
 
+    @Test
+    public void reading_no_input_does_not_read_the_context_reader() throws Exception {
+        // would block a pump for ever
+        scriptEngine.getContext().setReader(new PipedReader(new PipedWriter()));
+        scriptEngine.put(ScriptInput.INPUT_NAME, "none");
+
+        assertEquals(NativeShellRunner.RETURN_CODE_OK, scriptEngine.eval("cat"));
+        assertEquals("", scriptOutput.toString());
+    }
+
+    @Test
+    public void blocked_readers_do_not_hold_back_other_inputs() throws Exception {
+        final CountDownLatch fifoWritten = new CountDownLatch(1);
+        // like a FIFO nobody writes to, the read is not interrupted when the pump is cancelled
+        Reader fifo = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                while (true) {
+                    try {
+                        fifoWritten.await();
+                        return -1;
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        int pumpThreads = Integer.getInteger(StreamPumps.PUMP_THREADS_PROPERTY_NAME,
+                                             Math.max(4, Runtime.getRuntime().availableProcessors()));
+        try {
+            for (int i = 0; i <= pumpThreads; i++) {
+                scriptEngine.getContext().setReader(fifo);
+                assertEquals(NativeShellRunner.RETURN_CODE_OK, scriptEngine.eval("sleep 0.1"));
+            }
+
+            scriptEngine.put(ProcessWatchdog.TIMEOUT_NAME, "10");
+            scriptEngine.put(ScriptInput.INPUT_NAME, "hello\n".getBytes());
+            scriptEngine.eval("cat");
+
+            assertEquals("hello\n", scriptOutput.toString());
+        } finally {
+            fifoWritten.countDown();
+        }
+    }
+
+    @Test
+    public void blocked_readers_do_not_take_a_thread_each() throws Exception {
+        final CountDownLatch fifoWritten = new CountDownLatch(1);
+        Reader fifo = new Reader() {
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                while (true) {
+                    try {
+                        fifoWritten.await();
+                        return -1;
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        int pumpThreads = Integer.getInteger(StreamPumps.PUMP_THREADS_PROPERTY_NAME,
+                                             Math.max(4, Runtime.getRuntime().availableProcessors()));
+        try {
+            for (int i = 0; i < 3 * pumpThreads; i++) {
+                scriptEngine.getContext().setReader(fifo);
+                scriptEngine.eval("true");
+            }
+
+            int blockingPumps = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith("jsr223-nativeshell-blocking-input-pump-")) {
+                    blockingPumps++;
+                }
+            }
+            assertTrue(blockingPumps + " blocking pumps", blockingPumps <= pumpThreads);
+        } finally {
+            fifoWritten.countDown();
+        }
+    }
+
+    @Test
+    public void reading_input_from_bytes() throws Exception {
+        scriptEngine.put(ScriptInput.INPUT_NAME, "hello\n".getBytes());
+
+        scriptEngine.eval("cat");
+
+        assertEquals("hello\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void reading_input_from_records() throws Exception {
+        scriptEngine.put(ScriptInput.INPUT_NAME, asList("first", "second", "raw\n".getBytes()).iterator());
+
+        scriptEngine.eval("cat");
+
+        assertEquals("first\nsecond\nraw\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void large_script_reading_input_from_file() throws Exception {
+        File inputFile = File.createTempFile("input", ".txt");
+        try {
+            Files.write(inputFile.toPath(), "hello\n".getBytes());
+            StringBuilder largeScript = new StringBuilder("read line; echo \"$line\"\n");
+            while (largeScript.length() < 2 * Bash.getInlineScriptMaxLength()) {
+                largeScript.append("# padding\n");
+            }
+            scriptEngine.put(ScriptInput.INPUT_NAME, "file:" + inputFile.getAbsolutePath());
+
+            scriptEngine.eval("cat");
+            scriptEngine.eval(largeScript.toString());
+
+            assertEquals("hello\nhello\n", scriptOutput.toString());
+        } finally {
+            inputFile.delete();
+        }
+    }
+
     @Test
     public void evaluate_different_calls_with_bindings() throws Exception {
         SimpleBindings bindings = new SimpleBindings();
@@ -190,6 +359,45 @@ public class BashScriptEngineTest {
         assertEquals("aString\naString\n", contextOutput.toString());
     }
 
+    @Test
+    public void evaluate_script_with_slow_output() throws Exception {
+        assertEquals(NativeShellRunner.RETURN_CODE_OK,
+                     scriptEngine.eval("for i in 1 2 3; do echo $i; echo error$i >&2; sleep 0.1; done"));
+        assertEquals("1\n2\n3\n", scriptOutput.toString());
+        assertEquals("error1\nerror2\nerror3\n", scriptError.toString());
+    }
+
+    @Test
+    public void evaluate_asynchronously() throws Exception {
+        scriptEngine.put("string", "aString");
+
+        CompletableFuture<Object> result = scriptEngine.evalAsync("echo $string", scriptEngine.getContext());
+
+        assertEquals(NativeShellRunner.RETURN_CODE_OK, result.get());
+        assertEquals(NativeShellRunner.RETURN_CODE_OK,
+                     scriptEngine.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
+        assertEquals("aString\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void cancel_asynchronous_evaluation() throws Exception {
+        long start = System.currentTimeMillis();
+        CompletableFuture<Object> result = scriptEngine.evalAsync("echo $$; sleep 30", scriptEngine.getContext());
+        for (int i = 0; i < 50 && scriptOutput.toString().isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+
+        result.cancel(true);
+
+        assertTrue(result.isCancelled());
+        File process = new File("/proc/" + scriptOutput.toString().trim());
+        for (int i = 0; i < 50 && process.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(process.exists());
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
     @Ignore("slow")
     @Test
     public void evaluate_script_with_large_output() throws Exception {
@@ -210,4 +418,302 @@ public class BashScriptEngineTest {
                      scriptEngine.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
         assertTrue(scriptOutput.toString().contains("aString4999"));
     }
+
+    @Test
+    public void evaluate_large_script_reading_input_and_arguments() throws Exception {
+        StringBuilder largeScript = new StringBuilder("read line; echo \"$line $1\"\n");
+        while (largeScript.length() < 2 * Bash.getInlineScriptMaxLength()) {
+            largeScript.append("# padding\n");
+        }
+        scriptEngine.getContext().setReader(new StringReader("hello\n"));
+        scriptEngine.put(Script.ARGUMENTS_NAME, new String[] { "world" });
+
+        assertEquals(NativeShellRunner.RETURN_CODE_OK, scriptEngine.eval(largeScript.toString()));
+        assertEquals("hello world\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void evaluate_with_oversized_binding_and_arguments() throws Exception {
+        StringBuilder largeValue = new StringBuilder();
+        while (largeValue.length() < 1024 * 1024) {
+            largeValue.append("a large value\n");
+        }
+        scriptEngine.put("largeVariable", largeValue.toString());
+        scriptEngine.put(Script.ARGUMENTS_NAME, new String[] { "first", largeValue.toString(), "last" });
+
+        assertEquals(NativeShellRunner.RETURN_CODE_OK,
+                     scriptEngine.eval("echo ${#largeVariable} ${#2} $1 $3 $#; test -f \"$largeVariable_FILE\""));
+        int expectedLength = largeValue.length();
+        assertEquals(expectedLength + " " + expectedLength + " first last 3\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void spilled_values_are_only_readable_by_their_owner() throws Exception {
+        StringBuilder largeSecret = new StringBuilder();
+        while (largeSecret.length() < 128 * 1024) {
+            largeSecret.append("s\u00e9cret");
+        }
+        scriptEngine.put("largeSecret", largeSecret.toString());
+
+        scriptEngine.eval("stat -c %a \"$largeSecret_FILE\"; test \"$largeSecret\" = \"" + largeSecret + "\"");
+
+        assertEquals("600\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void result_file_is_only_readable_by_its_owner() throws Exception {
+        scriptEngine.put(SchedulerConstants.VARIABLES_BINDING_NAME, new HashMap<String, Serializable>());
+        scriptEngine.put(ResultChannel.RESULTS_NAME, "true");
+
+        scriptEngine.eval("stat -c %a \"$NATIVE_SHELL_RESULT_FILE\"");
+
+        assertEquals("600\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void evaluate_with_results() throws Exception {
+        Map<String, Serializable> variables = new HashMap<>();
+        scriptEngine.put(SchedulerConstants.VARIABLES_BINDING_NAME, variables);
+        scriptEngine.put(ResultChannel.RESULTS_NAME, "true");
+
+        scriptEngine.eval("echo answer=42 >> \"$NATIVE_SHELL_RESULT_FILE\"; echo output\n" +
+                          "printf 'lines=one\\\\ntwo' >> \"$NATIVE_SHELL_RESULT_FILE\"");
+
+        assertEquals("42", variables.get("answer"));
+        assertEquals("one\ntwo", variables.get("lines"));
+        assertEquals(0, variables.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
+        assertEquals("output\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void results_are_decoded_with_the_charset_of_the_streams() throws Exception {
+        assumeTrue(StreamPumps.getCharset().newEncoder().canEncode("caf\u00e9"));
+        Map<String, Serializable> variables = new HashMap<>();
+        scriptEngine.put(SchedulerConstants.VARIABLES_BINDING_NAME, variables);
+        scriptEngine.put(ResultChannel.RESULTS_NAME, "true");
+        StringBuilder printf = new StringBuilder("printf 'word=");
+        for (byte b : "caf\u00e9".getBytes(StreamPumps.getCharset())) {
+            printf.append(String.format("\\%03o", b & 0xff));
+        }
+
+        scriptEngine.eval(printf + "' >> \"$NATIVE_SHELL_RESULT_FILE\"");
+
+        assertEquals("caf\u00e9", variables.get("word"));
+    }
+
+    @Test
+    public void result_file_is_only_created_on_request() throws Exception {
+        scriptEngine.put(SchedulerConstants.VARIABLES_BINDING_NAME, new HashMap<String, Serializable>());
+
+        scriptEngine.eval("echo \"${NATIVE_SHELL_RESULT_FILE-unset}\"");
+
+        assertEquals("unset\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void results_are_applied_while_the_script_runs() throws Exception {
+        Map<String, Serializable> variables = new ConcurrentHashMap<>();
+        scriptEngine.put(SchedulerConstants.VARIABLES_BINDING_NAME, variables);
+        scriptEngine.put(ResultChannel.RESULTS_NAME, "true");
+
+        CompletableFuture<Object> result = scriptEngine.evalAsync("echo step=1 >> \"$NATIVE_SHELL_RESULT_FILE\"; " +
+                                                                  "exec sleep 30",
+                                                                  scriptEngine.getContext());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!variables.containsKey("step") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(result.isDone());
+        assertEquals("1", variables.get("step"));
+        result.cancel(true);
+    }
+
+    @Test
+    public void evaluate_with_binary_content_type() throws Exception {
+        scriptEngine.put(SchedulerConstants.GENERIC_INFO_BINDING_NAME,
+                         singletonMap(NativeShellScriptEngine.CONTENT_TYPE, "application/octet-stream"));
+
+        Object result = scriptEngine.eval("printf 'a\\377\\000b'");
+
+        assertArrayEquals(new byte[] { 'a', (byte) 0xff, 0, 'b' }, (byte[]) result);
+    }
+
+    @Test
+    public void evaluate_with_output_tail_as_result() throws Exception {
+        Map<String, String> genericInfo = new HashMap<>();
+        genericInfo.put(NativeShellScriptEngine.CONTENT_TYPE, "text/plain");
+        genericInfo.put(TailOutputCapture.OUTPUT_TAIL_LINES_NAME, "2");
+        scriptEngine.put(SchedulerConstants.GENERIC_INFO_BINDING_NAME, genericInfo);
+
+        Object result = scriptEngine.eval("seq 100000");
+
+        assertEquals("99999\n100000\n", new String((byte[]) result));
+    }
+
+    @Test
+    public void failed_script_exception_has_error_tail() throws Exception {
+        scriptEngine.put(TailOutputCapture.ERROR_TAIL_LINES_NAME, "1");
+        try {
+            scriptEngine.eval("echo first error >&2; echo last error >&2; exit 3");
+            fail("Expected a ScriptException");
+        } catch (ScriptException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("last error"));
+            assertFalse(e.getMessage(), e.getMessage().contains("first error"));
+        }
+    }
+
+    @Test
+    public void evaluate_with_merged_output() throws Exception {
+        scriptEngine.put(StreamPumps.MERGE_OUTPUT_NAME, "true");
+
+        scriptEngine.eval("for i in 1 2 3; do echo out$i; echo err$i >&2; done");
+
+        assertEquals("out1\nerr1\nout2\nerr2\nout3\nerr3\n", scriptOutput.toString());
+        assertEquals("", scriptError.toString());
+    }
+
+    @Test
+    public void evaluate_with_output_redirected_to_file() throws Exception {
+        File outputFile = File.createTempFile("redirected", ".out");
+        try {
+            scriptEngine.put(OutputRedirects.OUTPUT_REDIRECT_NAME, "file:" + outputFile.getAbsolutePath());
+            scriptEngine.put(OutputRedirects.ERROR_REDIRECT_NAME, "discard");
+
+            scriptEngine.eval("echo first; echo error >&2");
+            scriptEngine.eval("echo second");
+
+            assertEquals("first\nsecond\n", new String(Files.readAllBytes(outputFile.toPath())));
+            assertEquals("", scriptOutput.toString());
+            assertEquals("", scriptError.toString());
+        } finally {
+            outputFile.delete();
+        }
+    }
+
+    @Test
+    public void idle_timeout_is_ignored_when_no_output_is_pumped() throws Exception {
+        scriptEngine.put(OutputRedirects.OUTPUT_REDIRECT_NAME, "discard");
+        scriptEngine.put(OutputRedirects.ERROR_REDIRECT_NAME, "discard");
+        scriptEngine.put(ProcessWatchdog.IDLE_TIMEOUT_NAME, "0.2");
+
+        Object result = scriptEngine.eval("for i in 1 2 3 4 5; do echo $i; sleep 0.1; done");
+
+        assertEquals(NativeShellRunner.RETURN_CODE_OK, result);
+    }
+
+    @Test
+    public void captured_output_is_not_redirected() throws Exception {
+        Map<String, String> genericInfo = new HashMap<>();
+        genericInfo.put(NativeShellScriptEngine.CONTENT_TYPE, "text/plain");
+        genericInfo.put(OutputRedirects.OUTPUT_REDIRECT_NAME, "discard");
+        scriptEngine.put(SchedulerConstants.GENERIC_INFO_BINDING_NAME, genericInfo);
+
+        Object result = scriptEngine.eval("echo captured");
+
+        assertEquals("captured\n", new String((byte[]) result));
+    }
+
+    @Test(expected = ScriptException.class)
+    public void invalid_output_redirect() throws Exception {
+        scriptEngine.put(OutputRedirects.OUTPUT_REDIRECT_NAME, "elsewhere");
+
+        scriptEngine.eval("echo lost");
+    }
+
+    @Test
+    public void evaluate_with_line_subscriber() throws Exception {
+        final List<String> lines = new ArrayList<>();
+
+        scriptEngine.eval("echo first; printf 'second\\nlast'", scriptEngine.getContext(), new LineSubscriber() {
+            @Override
+            protected void onLine(String line) {
+                lines.add(line);
+            }
+        });
+
+        assertEquals(asList("first", "second", "last"), lines);
+        assertEquals("first\nsecond\nlast", scriptOutput.toString());
+    }
+
+    @Test
+    public void slow_subscriber_holds_the_script_back() throws Exception {
+        final AtomicReference<OutputSubscriber.Subscription> subscription = new AtomicReference<>();
+        final AtomicLong received = new AtomicLong();
+        OutputSubscriber subscriber = new OutputSubscriber() {
+            @Override
+            public void onSubscribe(OutputSubscriber.Subscription newSubscription) {
+                subscription.set(newSubscription);
+            }
+
+            @Override
+            public void onNext(byte[] chunk) {
+                received.addAndGet(chunk.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        };
+
+        CompletableFuture<Object> result = scriptEngine.evalAsync("head -c 4000000 /dev/zero",
+                                                                  scriptEngine.getContext(),
+                                                                  subscriber);
+        Thread.sleep(1000);
+        assertFalse(result.isDone());
+        assertEquals(0, received.get());
+
+        subscription.get().request(Long.MAX_VALUE);
+        assertEquals(NativeShellRunner.RETURN_CODE_OK, result.get(30, TimeUnit.SECONDS));
+        assertEquals(4000000, received.get());
+    }
+
+    @Test
+    public void evaluate_with_timeout() throws Exception {
+        scriptEngine.put(ProcessWatchdog.TIMEOUT_NAME, "0.5");
+        long start = System.currentTimeMillis();
+        try {
+            scriptEngine.eval("exec sleep 30");
+            fail("Expected a ScriptTimeoutException");
+        } catch (ScriptTimeoutException e) {
+            assertEquals(ScriptTimeoutException.Reason.DEADLINE, e.getReason());
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals("DEADLINE", scriptEngine.get(NativeShellScriptEngine.TIMEOUT_BINDING_NAME));
+        assertEquals(143, scriptEngine.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
+
+        scriptEngine.put(ProcessWatchdog.TIMEOUT_NAME, "10");
+        scriptEngine.eval("true");
+        assertNull(scriptEngine.get(NativeShellScriptEngine.TIMEOUT_BINDING_NAME));
+    }
+
+    @Test
+    public void evaluate_with_idle_output_timeout() throws Exception {
+        scriptEngine.put(ProcessWatchdog.IDLE_TIMEOUT_NAME, "0.5");
+        try {
+            scriptEngine.eval("for i in 1 2 3 4; do echo $i; sleep 0.2; done; exec sleep 30");
+            fail("Expected a ScriptTimeoutException");
+        } catch (ScriptTimeoutException e) {
+            assertEquals(ScriptTimeoutException.Reason.IDLE_OUTPUT, e.getReason());
+        }
+        assertEquals("1\n2\n3\n4\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void evaluate_asynchronously_with_timeout() throws Exception {
+        scriptEngine.put(ProcessWatchdog.TIMEOUT_NAME, "0.5");
+
+        CompletableFuture<Object> result = scriptEngine.evalAsync("exec sleep 30", scriptEngine.getContext());
+
+        try {
+            result.get(10, TimeUnit.SECONDS);
+            fail("Expected a ScriptTimeoutException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ScriptTimeoutException);
+        }
+        assertEquals("DEADLINE", scriptEngine.get(NativeShellScriptEngine.TIMEOUT_BINDING_NAME));
+    }
 }
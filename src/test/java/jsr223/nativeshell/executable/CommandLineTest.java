@@ -0,0 +1,80 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.executable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+
+public class CommandLineTest {
+
+    @Test
+    public void arguments_are_split_on_whitespace() {
+        assertArrayEquals(new String[] { "echo", "a", "b", "c" }, CommandLine.parse(" echo a\tb\n c ", true));
+    }
+
+    @Test
+    public void quotes_are_nested() {
+        assertArrayEquals(new String[] { "echo", "it's", "say \"hi\"", "", "a b" },
+                          CommandLine.parse("echo \"it's\" 'say \"hi\"' '' a' 'b", true));
+    }
+
+    @Test
+    public void backslashes_escape() {
+        assertArrayEquals(new String[] { "a b", "\"$", "\\n", "'", "joined" },
+                          CommandLine.parse("a\\ b \"\\\"\\$\" \"\\n\" \\' join\\\ned", true));
+    }
+
+    @Test
+    public void backslashes_are_literal_without_escapes() {
+        assertArrayEquals(new String[] { "C:\\Program Files\\app.exe", "C:\\tmp\\" },
+                          CommandLine.parse("\"C:\\Program Files\\app.exe\" C:\\tmp\\", false));
+    }
+
+    @Test
+    public void unclosed_quote_position() {
+        try {
+            CommandLine.parse("echo ok\necho \"not closed", true);
+            fail("Expected a SyntaxException");
+        } catch (CommandLine.SyntaxException e) {
+            assertEquals(2, e.getLine());
+            assertEquals(6, e.getColumn());
+        }
+    }
+
+    @Test
+    public void cached_arguments_are_copied() {
+        String[] first = CommandLine.translateCommandline("echo cached");
+        String[] second = CommandLine.translateCommandline("echo cached");
+
+        assertArrayEquals(first, second);
+        assertTrue(first != second);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * ProActive Parallel Suite(TM):
+ * The Open Source library for parallel and distributed
+ * Workflows & Scheduling, Orchestration, Cloud Automation
+ * and Big Data Analysis on Enterprise Grids & Clouds.
+ *
+ * Copyright (c) 2007 - 2017 ActiveEon
+ * Contact: contact@activeeon.com
+ *
+ * This library is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation: version 3 of
+ * the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * If needed, contact us to obtain a release under GPL Version 2 or 3
+ * or a different license than the AGPL.
+ */
+package jsr223.nativeshell.executable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+public class CommandTemplateTest {
+
+    @Test
+    public void slots_are_filled() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("name", "world");
+        bindings.put("empty", null);
+
+        assertArrayEquals(new String[] { "echo", "hello", "world", "world", "[]", "$unbound", "${unbound}" },
+                          CommandTemplate.parse("echo hello $name ${name} [$empty] $unbound ${unbound}", true)
+                                         .fill(bindings));
+    }
+
+    @Test
+    public void longest_bound_name_is_taken() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("HOME", "/home/user");
+        bindings.put("HOME_DIR", "/opt");
+
+        assertArrayEquals(new String[] { "/opt/bin", "/home/user_BIN", "/home/user-1" },
+                          CommandTemplate.parse("$HOME_DIR/bin $HOME_BIN $HOME-1", true).fill(bindings));
+    }
+
+    @Test
+    public void dots_after_a_name_follow_the_longest_bound_name() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("HOME", "/home/user");
+
+        assertArrayEquals(new String[] { "cp", "/home/user", "/home/user.bak" },
+                          CommandTemplate.parse("cp $HOME $HOME.bak", true).fill(bindings));
+    }
+
+    @Test
+    public void substituted_values_are_split_afterwards() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("ARGS", "-l 'a b'");
+        bindings.put("HOME", "/home/user");
+
+        assertEquals("ls -l 'a b' /home/user.bak ${unbound} $",
+                     CommandTemplate.substitute("ls $ARGS $HOME.bak ${unbound} $", bindings));
+        assertArrayEquals(new String[] { "ls", "-l", "a b" },
+                          CommandLine.translateCommandline(CommandTemplate.substitute("ls $ARGS", bindings)));
+    }
+
+    @Test
+    public void values_are_copied_as_they_are() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("price", "$1\\0");
+        bindings.put("other", "$price");
+
+        assertArrayEquals(new String[] { "costs", "$1\\0", "and", "$price" },
+                          CommandTemplate.parse("costs $price and $other", true).fill(bindings));
+    }
+
+    @Test
+    public void values_are_neither_split_nor_unquoted() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("quote", "it's");
+        bindings.put("path", "C:\\dir\\");
+        bindings.put("words", "a \"b\" c");
+
+        assertArrayEquals(new String[] { "cp", "it's", "C:\\dir\\", "a \"b\" c", "-a \"b\" c-" },
+                          CommandTemplate.parse("cp $quote \"$path\" '$words' -$words-", true).fill(bindings));
+    }
+
+    @Test
+    public void unquoted_empty_values_are_omitted() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("empty", "");
+
+        assertArrayEquals(new String[] { "echo", "", "", "x" },
+                          CommandTemplate.parse("echo $empty '' \"$empty\" x$empty", true).fill(bindings));
+    }
+
+    @Test
+    public void escaped_dollars_are_not_slots() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("name", "world");
+
+        assertArrayEquals(new String[] { "echo", "$name", "$name" },
+                          CommandTemplate.parse("echo \\$name \"\\$name\"", true).fill(bindings));
+    }
+
+    @Test
+    public void lone_dollars_are_literals() {
+        Map<String, Object> bindings = new HashMap<>();
+        bindings.put("a", "x");
+
+        assertArrayEquals(new String[] { "$", "$x", "${}", "${a", "$" },
+                          CommandTemplate.parse("$ $$a ${} ${a $", true).fill(bindings));
+    }
+
+    @Test
+    public void templates_are_cached() {
+        assertSame(CommandTemplate.compile("echo $cached"), CommandTemplate.compile("echo $cached"));
+    }
+}
@@ -30,9 +30,14 @@ import static java.util.Collections.singletonMap;
 import static org.junit.Assert.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import javax.script.Bindings;
+import javax.script.ScriptContext;
 import javax.script.ScriptException;
 
 import org.junit.Before;
@@ -42,6 +47,11 @@ import org.ow2.proactive.scheduler.common.SchedulerConstants;
 
 import jsr223.nativeshell.NativeShellRunner;
 import jsr223.nativeshell.NativeShellScriptEngine;
+import jsr223.nativeshell.OutputRedirects;
+import jsr223.nativeshell.ProcessWatchdog;
+import jsr223.nativeshell.ScriptInput;
+import jsr223.nativeshell.ScriptTimeoutException;
+import jsr223.nativeshell.StreamPumps;
 
 
 public class ExecutableScriptEngineTest {
@@ -125,6 +135,103 @@ public class ExecutableScriptEngineTest {
         assertEquals("\n", scriptOutput.toString());
     }
 
+    @Test
+    public void merged_output_from_generic_information() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put(SchedulerConstants.GENERIC_INFO_BINDING_NAME,
+                     singletonMap(StreamPumps.MERGE_OUTPUT_NAME, "true"));
+
+        scriptEngine.eval("sh -c 'echo out; echo err >&2; echo out'", bindings);
+
+        assertEquals("out\nerr\nout\n", scriptOutput.toString());
+        assertEquals("", scriptError.toString());
+    }
+
+    @Test
+    public void error_output_redirected_from_generic_information() throws Exception {
+        File errorFile = File.createTempFile("redirected", ".err");
+        try {
+            Bindings bindings = scriptEngine.createBindings();
+            bindings.put(SchedulerConstants.GENERIC_INFO_BINDING_NAME,
+                         singletonMap(OutputRedirects.ERROR_REDIRECT_NAME, "file:" + errorFile.getAbsolutePath()));
+
+            scriptEngine.eval("sh -c 'echo out; echo err >&2'", bindings);
+
+            assertEquals("out\n", scriptOutput.toString());
+            assertEquals("", scriptError.toString());
+            assertEquals("err\n", new String(Files.readAllBytes(errorFile.toPath())));
+        } finally {
+            errorFile.delete();
+        }
+    }
+
+    @Test
+    public void input_from_bytes() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put(ScriptInput.INPUT_NAME, ByteBuffer.wrap("hello\n".getBytes()));
+
+        scriptEngine.eval("cat", bindings);
+
+        assertEquals("hello\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void unclosed_quote_is_reported_with_its_position() throws Exception {
+        try {
+            scriptEngine.eval("echo 'unclosed");
+            fail("Expected a ScriptException");
+        } catch (ScriptException e) {
+            assertEquals(1, e.getLineNumber());
+            assertEquals(6, e.getColumnNumber());
+        }
+    }
+
+    @Test
+    public void binding_values_are_split_into_arguments() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put("ARGS", "-n 'hello  world'");
+
+        scriptEngine.eval("echo $ARGS", bindings);
+
+        assertEquals("hello  world", scriptOutput.toString());
+    }
+
+    @Test
+    public void literal_binding_values_are_not_parsed() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put(ExecutableScriptEngine.LITERAL_VALUES_NAME, "true");
+        bindings.put("value", "it's a \\ and a \"");
+
+        scriptEngine.eval("echo $value", bindings);
+
+        assertEquals("it's a \\ and a \"\n", scriptOutput.toString());
+    }
+
+    @Test
+    public void unclosed_quote_is_reported_without_binding_values() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put("secret", "s3cr3t");
+        try {
+            scriptEngine.eval("echo $secret 'unclosed", bindings);
+            fail("Expected a ScriptException");
+        } catch (ScriptException e) {
+            assertEquals(14, e.getColumnNumber());
+            assertFalse(e.getMessage(), e.getMessage().contains("s3cr3t"));
+        }
+    }
+
+    @Test
+    public void unclosed_quote_in_a_binding_value_is_reported_without_it() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put("secret", "it's s3cr3t");
+        try {
+            scriptEngine.eval("echo $secret", bindings);
+            fail("Expected a ScriptException");
+        } catch (ScriptException e) {
+            assertFalse(e.getMessage(), e.getMessage().contains("s3cr3t"));
+        }
+    }
+
     @Test
     public void exitCodeBindingSuccess() throws Exception {
         Bindings bindings = scriptEngine.createBindings();
@@ -138,6 +245,23 @@ public class ExecutableScriptEngineTest {
         assertEquals(variables.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME), 0);
     }
 
+    @Test
+    public void timeoutFromGenericInformation() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        HashMap<String, Serializable> variables = new HashMap<>();
+        bindings.put(SchedulerConstants.VARIABLES_BINDING_NAME, variables);
+        bindings.put(SchedulerConstants.GENERIC_INFO_BINDING_NAME,
+                     singletonMap(ProcessWatchdog.TIMEOUT_NAME, "0.5"));
+
+        try {
+            scriptEngine.eval("sleep 30", bindings);
+            fail("Expected a ScriptTimeoutException");
+        } catch (ScriptTimeoutException e) {
+            assertEquals(ScriptTimeoutException.Reason.DEADLINE, e.getReason());
+        }
+        assertEquals("DEADLINE", variables.get(NativeShellScriptEngine.TIMEOUT_BINDING_NAME));
+    }
+
     @Test
     public void exitCodeBindingError() throws Exception {
         Bindings bindings = scriptEngine.createBindings();
@@ -157,6 +281,32 @@ public class ExecutableScriptEngineTest {
         assertNotEquals(variables.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME), 0);
     }
 
+    @Test
+    public void evaluate_asynchronously() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        HashMap<String, Serializable> variables = new HashMap<>();
+        bindings.put(SchedulerConstants.VARIABLES_BINDING_NAME, variables);
+        scriptEngine.getContext().setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+
+        CompletableFuture<Object> result = scriptEngine.evalAsync("echo hello", scriptEngine.getContext());
+
+        assertEquals(0, result.get());
+        assertEquals("hello\n", scriptOutput.toString());
+        assertEquals(0, variables.get(NativeShellScriptEngine.EXIT_VALUE_BINDING_NAME));
+    }
+
+    @Test
+    public void evaluate_asynchronously_error_returned() throws Exception {
+        CompletableFuture<Object> result = scriptEngine.evalAsync("false", scriptEngine.getContext());
+
+        try {
+            result.get();
+            fail("Expected the evaluation to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ScriptException);
+        }
+    }
+
     @Test
     public void reading_input() throws Exception {
         StringReader stringInput = new StringReader("hello\n");
@@ -189,6 +339,18 @@ public class ExecutableScriptEngineTest {
         assertEquals("one two l1 value b\n", scriptOutput.toString());
     }
 
+    @Test
+    public void collection_bindings_are_not_added_to_the_bindings() throws Exception {
+        Bindings bindings = scriptEngine.createBindings();
+        bindings.put("list", singletonList("l1"));
+
+        scriptEngine.eval("echo $list_0", bindings);
+        scriptEngine.eval("sh -c 'echo $list_0'", bindings);
+
+        assertEquals("l1\nl1\n", scriptOutput.toString());
+        assertFalse(bindings.containsKey("list_0"));
+    }
+
     @Test
     public void environment_bindings() throws Exception {
         Bindings bindings = scriptEngine.createBindings();